@@ -0,0 +1,77 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// A single watcher's interval and distance filter, and the distance
+// calculation behind it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceFilterBenchmark {
+    private LocationMultiplexer.Subscription subscription;
+    private Location previous;
+    private Location location;
+
+    @Setup
+    public void setUp() {
+        subscription = new LocationMultiplexer.Subscription() {
+            @Override
+            void onLocations(ArrayList<Location> locations) {}
+        };
+        subscription.interval = 1000;
+        subscription.distanceFilter = 10;
+        previous = Fixes.walk(0);
+        location = Fixes.walk(10);
+        LocationMultiplexer multiplexer = new LocationMultiplexer(new LocationMultiplexer.Source() {
+            @Override
+            public void requestUpdates(
+                    long interval,
+                    long fastestInterval,
+                    int priority,
+                    long maxWaitTime,
+                    float smallestDisplacement
+            ) {}
+
+            @Override
+            public void removeUpdates() {}
+        });
+        multiplexer.add(subscription);
+        // The previously accepted location, which later ones are measured
+        // against.
+        ArrayList<Location> first = new ArrayList<Location>();
+        first.add(previous);
+        multiplexer.dispatch(first);
+    }
+
+    @Benchmark
+    public double distanceBetween() {
+        return LocationMultiplexer.distanceBetween(
+                previous.getLatitude(),
+                previous.getLongitude(),
+                location.getLatitude(),
+                location.getLongitude()
+        );
+    }
+
+    @Benchmark
+    public boolean accepts() {
+        return subscription.accepts(location);
+    }
+}
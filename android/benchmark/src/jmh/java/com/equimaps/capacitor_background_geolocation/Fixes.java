@@ -0,0 +1,25 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Synthetic locations for the benchmarks.
+class Fixes {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    // The i-th location of a walk north east from central London, one a
+    // second at 1.4m/s, with every field set as the fused provider would.
+    static Location walk(long i) {
+        double metres = 1.4 * (i % 1000000);
+        Location location = new Location("fused");
+        location.setTime(1700000000000L + i * 1000);
+        location.setElapsedRealtimeNanos(i * 1000000000L);
+        location.setLatitude(51.5 + metres / METRES_PER_DEGREE);
+        location.setLongitude(-0.12 + metres / (METRES_PER_DEGREE * Math.cos(Math.toRadians(51.5))));
+        location.setAltitude(30 + (i % 7));
+        location.setAccuracy(4 + (i % 5));
+        location.setVerticalAccuracyMeters(8);
+        location.setSpeed(1.4f);
+        location.setBearing(45);
+        return location;
+    }
+}
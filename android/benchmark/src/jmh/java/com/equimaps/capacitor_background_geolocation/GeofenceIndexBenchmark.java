@@ -0,0 +1,69 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Finding the fences containing a location, against the number and size of
+// the fences, which decide the grid level they are indexed at.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeofenceIndexBenchmark {
+    private static final int POINTS = 4096;
+
+    @Param({"100", "10000", "100000"})
+    public int fences;
+
+    // In metres.
+    @Param({"100", "1000", "10000"})
+    public double radius;
+
+    private final GeofenceIndex index = new GeofenceIndex();
+    private final double[] points = new double[POINTS * 2];
+    private final ArrayList<GeofenceIndex.Geofence> found = new ArrayList<GeofenceIndex.Geofence>();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // Fences and locations spread over an area the size of London.
+        Random random = new Random(1);
+        ArrayList<GeofenceIndex.Geofence> added = new ArrayList<GeofenceIndex.Geofence>(fences);
+        for (int i = 0; i < fences; i++) {
+            added.add(GeofenceIndex.Geofence.circle(
+                    "fence" + i,
+                    51.3 + random.nextDouble() * 0.4,
+                    -0.5 + random.nextDouble() * 0.7,
+                    radius
+            ));
+        }
+        index.add(added);
+        for (int i = 0; i < POINTS; i++) {
+            points[i * 2] = 51.3 + random.nextDouble() * 0.4;
+            points[i * 2 + 1] = -0.5 + random.nextDouble() * 0.7;
+        }
+    }
+
+    @Benchmark
+    public int find() {
+        int i = (next++ & (POINTS - 1)) * 2;
+        found.clear();
+        index.find(points[i], points[i + 1], found);
+        return found.size();
+    }
+}
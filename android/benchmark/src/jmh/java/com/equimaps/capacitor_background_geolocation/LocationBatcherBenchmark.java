@@ -0,0 +1,46 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Adding a location to a watcher's batch, amortized over the batches it
+// releases.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationBatcherBenchmark {
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    private LocationBatcher<Location> batcher;
+    private Location location;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        batcher = new LocationBatcher<Location>(batchSize, 60000);
+        location = Fixes.walk(0);
+    }
+
+    @Benchmark
+    public ArrayList<Location> add() {
+        return batcher.add(location, now++);
+    }
+}
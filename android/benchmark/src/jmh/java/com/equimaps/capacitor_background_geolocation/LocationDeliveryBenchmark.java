@@ -0,0 +1,200 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.getcapacitor.JSObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Handing each location from the service's thread to the plugin, directly
+// through LocationDelivery or through a model of the LocalBroadcastManager
+// fallback, at the rates watchers ask for. The receiving thread idles between
+// locations, as it does on a device, so the latency includes waking it. Run
+// with -Pjmh.profilers=gc for the allocation per location.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LocationDeliveryBenchmark {
+    private static final String ACTION = "com.equimaps.capacitor_background_geolocation.broadcast";
+
+    // LocalBroadcastManager's in-process path, as far as it costs anything:
+    // the extras are boxed into the Intent, one global lock guards the
+    // receivers and the pending broadcasts, and the main thread is woken
+    // through its message queue to dispatch them.
+    private static class Broadcaster implements Runnable {
+        interface Receiver {
+            void onReceive(HashMap<String, Object> extras);
+        }
+
+        private static class Record {
+            final HashMap<String, Object> extras;
+            final ArrayList<Receiver> receivers;
+
+            Record(HashMap<String, Object> extras, ArrayList<Receiver> receivers) {
+                this.extras = extras;
+                this.receivers = receivers;
+            }
+        }
+
+        private static final Object EXECUTE = new Object();
+        private static final Object QUIT = new Object();
+
+        private final HashMap<String, ArrayList<Receiver>> receivers = new HashMap<String, ArrayList<Receiver>>();
+        private final ArrayList<Record> pending = new ArrayList<Record>();
+        private final LinkedBlockingQueue<Object> messages = new LinkedBlockingQueue<Object>();
+        private final Thread main = new Thread(this, "main");
+
+        void register(String action, Receiver receiver) {
+            synchronized (receivers) {
+                ArrayList<Receiver> registered = receivers.get(action);
+                if (registered == null) {
+                    registered = new ArrayList<Receiver>(1);
+                    receivers.put(action, registered);
+                }
+                registered.add(receiver);
+            }
+        }
+
+        void send(String action, HashMap<String, Object> extras) {
+            synchronized (receivers) {
+                ArrayList<Receiver> registered = receivers.get(action);
+                if (registered == null) {
+                    return;
+                }
+                pending.add(new Record(extras, new ArrayList<Receiver>(registered)));
+                if (pending.size() == 1) {
+                    messages.offer(EXECUTE);
+                }
+            }
+        }
+
+        void start() {
+            main.start();
+        }
+
+        void stop() {
+            messages.offer(QUIT);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (messages.take() != QUIT) {
+                    Record[] records;
+                    synchronized (receivers) {
+                        records = pending.toArray(new Record[0]);
+                        pending.clear();
+                    }
+                    for (Record record : records) {
+                        for (Receiver receiver : record.receivers) {
+                            receiver.onReceive(record.extras);
+                        }
+                    }
+                }
+            } catch (InterruptedException ignore) {}
+        }
+    }
+
+    @Param({"1", "10", "100"})
+    public int rate;
+
+    @Param({"direct", "broadcast"})
+    public String path;
+
+    private LocationDelivery delivery;
+    private Broadcaster broadcaster;
+    private volatile long received;
+    private long sent;
+
+    @Setup
+    public void setUp() {
+        if ("direct".equals(path)) {
+            PipelineStats stats = new PipelineStats();
+            stats.addWatcher("watcher");
+            delivery = new LocationDelivery(stats);
+            delivery.setListener(new LocationDelivery.Listener() {
+                @Override
+                public boolean onLocations(String id, ArrayList<Location> locations) {
+                    received += locations.size();
+                    return true;
+                }
+
+                @Override
+                public void onResult(String id, JSObject data) {}
+
+                @Override
+                public void onEvent(String event, JSObject data) {}
+            });
+            delivery.start();
+        } else {
+            broadcaster = new Broadcaster();
+            broadcaster.register(ACTION, new Broadcaster.Receiver() {
+                @Override
+                public void onReceive(HashMap<String, Object> extras) {
+                    if (extras.get("id") != null && extras.get("location") != null) {
+                        received += 1;
+                    }
+                }
+            });
+            broadcaster.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (delivery != null) {
+            delivery.stop();
+        }
+        if (broadcaster != null) {
+            broadcaster.stop();
+        }
+    }
+
+    // Waits out the interval between locations, which is not measured.
+    @Setup(Level.Invocation)
+    public void pace() {
+        LockSupport.parkNanos(1000000000L / rate);
+    }
+
+    // From the service handing over a location to the plugin receiving it.
+    @Benchmark
+    public long deliver() {
+        Location location = Fixes.walk(sent);
+        sent += 1;
+        if (delivery != null) {
+            ArrayList<Location> locations = new ArrayList<Location>(1);
+            locations.add(location);
+            delivery.offer("watcher", locations);
+        } else {
+            HashMap<String, Object> extras = new HashMap<String, Object>();
+            extras.put("id", "watcher");
+            extras.put("location", location);
+            broadcaster.send(ACTION, extras);
+        }
+        while (received != sent) {
+            Thread.onSpinWait();
+        }
+        return received;
+    }
+}
@@ -0,0 +1,60 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.getcapacitor.JSObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Building the payloads passed over the bridge, alone and serialized as the
+// bridge does, for a single location and for a batch.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationEncoderBenchmark {
+    @Param({"object", "compact"})
+    public String encoding;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private LocationEncoder encoder;
+    private Location location;
+    private ArrayList<Location> batch;
+
+    @Setup
+    public void setUp() {
+        encoder = LocationEncoder.forName(encoding);
+        location = Fixes.walk(0);
+        batch = new ArrayList<Location>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(Fixes.walk(i));
+        }
+    }
+
+    @Benchmark
+    public JSObject encode() {
+        return batchSize == 1 ? encoder.encode(location) : encoder.encode(batch);
+    }
+
+    @Benchmark
+    public String encodeAndSerialize() {
+        return encode().toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Appending to and reading back a journal holding a million records, about
+// as many as it keeps. Appends rotate segments and discard the oldest, as on
+// a device that has journaled for weeks without acknowledging. Reads are a
+// page at a random cursor, as readJournal and the uploader do.
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationJournalBenchmark {
+    private static final int RECORDS = 1000000;
+
+    private static File directory(String name) throws IOException {
+        File directory = File.createTempFile(name, "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Full {
+        File directory;
+        LocationJournal journal;
+        long next;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = directory("journal");
+            journal = new LocationJournal(directory);
+            for (next = 0; next < RECORDS; next++) {
+                journal.append(Fixes.walk(next));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Reader {
+        @Param({"1", "100", "1000"})
+        public int page;
+
+        final Random random = new Random(1);
+        final ArrayList<Location> out = new ArrayList<Location>();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void append(Full full) throws IOException {
+        full.journal.append(Fixes.walk(full.next++));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int read(Full full, Reader reader) throws IOException {
+        long oldest = full.journal.getAcknowledged();
+        long span = full.journal.getNext() - oldest - reader.page;
+        long cursor = oldest + (long) (reader.random.nextDouble() * span);
+        reader.out.clear();
+        full.journal.read(cursor, reader.page, reader.out);
+        return reader.out.size();
+    }
+}
@@ -0,0 +1,80 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// Fanning each location out to the watchers, through their interval and
+// distance filters.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationMultiplexerBenchmark {
+    private static class Watcher extends LocationMultiplexer.Subscription {
+        long delivered;
+        long rejected;
+
+        @Override
+        void onLocations(ArrayList<Location> locations) {
+            delivered += locations.size();
+        }
+
+        @Override
+        void onRejected(int count) {
+            rejected += count;
+        }
+    }
+
+    @Param({"1", "10", "100"})
+    public int watchers;
+
+    private LocationMultiplexer multiplexer;
+    private long next;
+
+    @Setup
+    public void setUp() {
+        multiplexer = new LocationMultiplexer(new LocationMultiplexer.Source() {
+            @Override
+            public void requestUpdates(
+                    long interval,
+                    long fastestInterval,
+                    int priority,
+                    long maxWaitTime,
+                    float smallestDisplacement
+            ) {}
+
+            @Override
+            public void removeUpdates() {}
+        });
+        for (int i = 0; i < watchers; i++) {
+            // A mix of filters, so that some locations are rejected.
+            Watcher watcher = new Watcher();
+            watcher.interval = 1000 * (1 + i % 5);
+            watcher.distanceFilter = (i % 3) * 5;
+            multiplexer.add(watcher);
+        }
+    }
+
+    // Each location is new, as it would be from the provider.
+    @Benchmark
+    public void dispatch() {
+        multiplexer.dispatch(Collections.singletonList(Fixes.walk(next++)));
+    }
+}
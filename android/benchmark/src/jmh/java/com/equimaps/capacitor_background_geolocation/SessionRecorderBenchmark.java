@@ -0,0 +1,101 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Recording, reading back and exporting a day's session at one fix a
+// second. Recording and reading are reported per fix, and exports per day.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionRecorderBenchmark {
+    private static final int FIXES = 86400;
+
+    // Only the export is run for each format.
+    @State(Scope.Benchmark)
+    public static class Export {
+        @Param({"gpx", "geojson", "binary"})
+        public String format;
+    }
+
+    private final Location[] day = new Location[FIXES];
+    private File directory;
+    private File session;
+    private File scratch;
+    private File export;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (int i = 0; i < FIXES; i++) {
+            day[i] = Fixes.walk(i);
+        }
+        directory = File.createTempFile("session", "");
+        directory.delete();
+        directory.mkdirs();
+        session = new File(directory, "session");
+        scratch = new File(directory, "scratch");
+        export = new File(directory, "export");
+        SessionRecorder recorder = new SessionRecorder(session);
+        for (Location location : day) {
+            recorder.append(location);
+        }
+        recorder.close();
+        System.out.printf("%n%.2f bytes a fix%n", session.length() / (double) FIXES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : new File[]{session, scratch, export, directory}) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long record() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(scratch);
+        for (Location location : day) {
+            recorder.append(location);
+        }
+        recorder.close();
+        return recorder.getSize();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public double read() throws IOException {
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(session);
+        double sum = 0;
+        while (reader.next()) {
+            sum += reader.latitude;
+        }
+        reader.close();
+        return sum;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long exportDay(Export options) throws IOException {
+        return SessionRecorder.export(session, export, options.format);
+    }
+}
@@ -0,0 +1,83 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Adding, replacing, removing and looking up watchers, with a registry
+// already holding the given number of them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WatcherRegistryBenchmark {
+    private static final WatcherRegistry.Listener<Object> LISTENER = new WatcherRegistry.Listener<Object>() {
+        @Override
+        public void onPromote(Object watcher) {}
+
+        @Override
+        public void onDemote() {}
+
+        @Override
+        public void onGatingStarted() {}
+
+        @Override
+        public void onGatingStopped() {}
+    };
+
+    @Param({"1", "10", "100"})
+    public int watchers;
+
+    private WatcherRegistry<Object> registry;
+    private String[] ids;
+    private final Object watcher = new Object();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        registry = new WatcherRegistry<Object>(LISTENER);
+        ids = new String[watchers];
+        for (int i = 0; i < watchers; i++) {
+            // Callback IDs, as Capacitor generates them.
+            ids[i] = Long.toString(1700000000000L + i);
+            // A mix of flags, so that every count is kept.
+            registry.put(ids[i], new Object(), i % 2 == 0, i % 3 == 0);
+        }
+    }
+
+    private String nextId() {
+        next = next + 1 == watchers ? 0 : next + 1;
+        return ids[next];
+    }
+
+    @Benchmark
+    public Object get() {
+        return registry.get(nextId());
+    }
+
+    // Re-adding a watcher under its ID, as an app does when it changes a
+    // watcher's options.
+    @Benchmark
+    public Object replace() {
+        return registry.put(nextId(), watcher, true, false);
+    }
+
+    // A watcher added and then removed, leaving the others in place.
+    @Benchmark
+    public Object addAndRemove() {
+        registry.put("added", watcher, true, true);
+        return registry.remove("added");
+    }
+}
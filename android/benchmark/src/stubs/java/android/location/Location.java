@@ -0,0 +1,134 @@
+package android.location;
+
+// A stand-in for the framework class, holding the fields the plugin reads.
+public class Location {
+    private final String provider;
+    private long time;
+    private long elapsedRealtimeNanos;
+    private double latitude;
+    private double longitude;
+    private double altitude;
+    private float accuracy;
+    private float verticalAccuracy;
+    private float speed;
+    private float bearing;
+    private boolean hasAltitude;
+    private boolean hasAccuracy;
+    private boolean hasVerticalAccuracy;
+    private boolean hasSpeed;
+    private boolean hasBearing;
+    private boolean mock;
+
+    public Location(String provider) {
+        this.provider = provider;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    public void setElapsedRealtimeNanos(long elapsedRealtimeNanos) {
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    public boolean hasAltitude() {
+        return hasAltitude;
+    }
+
+    public double getAltitude() {
+        return altitude;
+    }
+
+    public void setAltitude(double altitude) {
+        this.altitude = altitude;
+        hasAltitude = true;
+    }
+
+    public boolean hasAccuracy() {
+        return hasAccuracy;
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    public void setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+        hasAccuracy = true;
+    }
+
+    public boolean hasVerticalAccuracy() {
+        return hasVerticalAccuracy;
+    }
+
+    public float getVerticalAccuracyMeters() {
+        return verticalAccuracy;
+    }
+
+    public void setVerticalAccuracyMeters(float verticalAccuracy) {
+        this.verticalAccuracy = verticalAccuracy;
+        hasVerticalAccuracy = true;
+    }
+
+    public boolean hasSpeed() {
+        return hasSpeed;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public void setSpeed(float speed) {
+        this.speed = speed;
+        hasSpeed = true;
+    }
+
+    public boolean hasBearing() {
+        return hasBearing;
+    }
+
+    public float getBearing() {
+        return bearing;
+    }
+
+    public void setBearing(float bearing) {
+        this.bearing = bearing;
+        hasBearing = true;
+    }
+
+    public boolean isFromMockProvider() {
+        return mock;
+    }
+
+    public void setMock(boolean mock) {
+        this.mock = mock;
+    }
+}
@@ -0,0 +1,6 @@
+package com.getcapacitor;
+
+import org.json.JSONArray;
+
+public class JSArray extends JSONArray {
+}
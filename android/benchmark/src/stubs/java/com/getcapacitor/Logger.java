@@ -0,0 +1,10 @@
+package com.getcapacitor;
+
+// A stand-in for Capacitor's logger, which discards everything.
+public class Logger {
+    public static void debug(String message) {}
+
+    public static void warn(String message) {}
+
+    public static void error(String message, Throwable throwable) {}
+}
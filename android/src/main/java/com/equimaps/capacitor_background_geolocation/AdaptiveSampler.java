@@ -0,0 +1,88 @@
+package com.equimaps.capacitor_background_geolocation;
+
+// Decides whether a watcher's device is stationary or moving, based on the
+// speed, accuracy and displacement of its recent locations. The device is
+// considered stationary once it has stayed within a small radius, slowly,
+// for the stationary timeout. It is considered moving again only on stronger
+// evidence: a higher speed or a larger displacement, seen on consecutive
+// locations. The gap between the two thresholds stops the state flapping
+// when the device sits near either of them.
+class AdaptiveSampler {
+    enum State {
+        MOVING,
+        STATIONARY
+    }
+
+    // Metres per second.
+    static final float STILL_SPEED = 0.5f;
+    static final float MOVING_SPEED = 1.5f;
+    // Metres.
+    static final float STILL_RADIUS = 25f;
+    static final float MOVING_RADIUS = 50f;
+    static final int MOVING_CONFIRMATIONS = 2;
+
+    private final long stationaryTimeout;
+    private State state = State.MOVING;
+    private boolean anchored = false;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private long anchorTime;
+    private int confirmations = 0;
+
+    AdaptiveSampler(long stationaryTimeout) {
+        this.stationaryTimeout = stationaryTimeout;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    // Feeds a location into the state machine, returning the new state if it
+    // changed, or null otherwise. The time is a monotonic timestamp in
+    // milliseconds. A negative speed means the speed is unknown.
+    State update(double latitude, double longitude, float accuracy, float speed, long time) {
+        if (!anchored) {
+            anchor(latitude, longitude, time);
+            return null;
+        }
+        double displacement = LocationMultiplexer.distanceBetween(
+                anchorLatitude,
+                anchorLongitude,
+                latitude,
+                longitude
+        );
+        if (state == State.MOVING) {
+            boolean still = (
+                    speed < STILL_SPEED &&
+                    displacement <= Math.max(STILL_RADIUS, accuracy)
+            );
+            if (!still) {
+                anchor(latitude, longitude, time);
+            } else if (time - anchorTime >= stationaryTimeout) {
+                state = State.STATIONARY;
+                confirmations = 0;
+                return state;
+            }
+        } else {
+            boolean moving = (
+                    speed >= MOVING_SPEED ||
+                    displacement > Math.max(MOVING_RADIUS, 2 * accuracy)
+            );
+            if (!moving) {
+                confirmations = 0;
+            } else if (++confirmations >= MOVING_CONFIRMATIONS) {
+                state = State.MOVING;
+                anchor(latitude, longitude, time);
+                return state;
+            }
+        }
+        return null;
+    }
+
+    private void anchor(double latitude, double longitude, long time) {
+        anchored = true;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        anchorTime = time;
+    }
+}
@@ -17,9 +17,12 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.Settings;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Logger;
 import com.getcapacitor.PermissionState;
@@ -29,11 +32,24 @@ import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
+import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.CancellationTokenSource;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 @CapacitorPlugin(
@@ -50,33 +66,95 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 )
 public class BackgroundGeolocation extends Plugin {
     private BackgroundGeolocationService.LocalBinder service = null;
+    // Watchers added before the service connected, which are added once it
+    // does. Guarded by itself.
+    private final ArrayList<PluginCall> pendingWatchers = new ArrayList<PluginCall>();
     private Boolean stoppedWithoutPermissions = false;
+    // How each watcher wants its locations, chosen when it is added.
+    private static class Format {
+        static final Format DEFAULT = new Format(LocationEncoder.OBJECT, false);
+
+        final LocationEncoder encoder;
+        // Batched watchers always receive a LocationBatch, however many
+        // locations it holds.
+        final boolean batched;
+
+        Format(LocationEncoder encoder, boolean batched) {
+            this.encoder = encoder;
+            this.batched = batched;
+        }
 
-    private void fetchLastLocation(PluginCall call) {
+        static Format from(PluginCall call) {
+            return new Format(
+                    LocationEncoder.forName(call.getString("encoding")),
+                    call.getInt("batchSize", 1) > 1
+            );
+        }
+
+        JSObject encode(Location location) {
+            if (batched) {
+                return encoder.encode(Collections.singletonList(location));
+            }
+            return encoder.encode(location);
+        }
+    }
+    // Keyed by callback ID.
+    private final ConcurrentHashMap<String, Format> formats = (
+            new ConcurrentHashMap<String, Format>()
+    );
+    // Exports can take a while for long sessions, so run on their own thread
+    // rather than holding up other plugin calls.
+    private final ExecutorService exporter = Executors.newSingleThreadExecutor();
+
+    private void fetchLastLocation(final PluginCall call) {
+        final LocationCache cache = LocationCache.getInstance(getContext());
+        // A fresh cached location saves a round trip to Play Services. An
+        // older one only covers the locations this plugin has seen, so Play
+        // Services may know of a newer one, from another app.
+        final Location cached = cache.get();
+        if (cached != null && LocationCache.getAge(cached) <= LocationCache.FRESH_AGE) {
+            call.resolve(getFormat(call.getCallbackId()).encode(cached));
+            return;
+        }
         try {
             LocationServices.getFusedLocationProviderClient(
                     getContext()
-            ).getLastLocation().addOnSuccessListener(
+            ).getLastLocation().addOnCompleteListener(
                     getActivity(),
-                    new OnSuccessListener<Location>() {
+                    new OnCompleteListener<Location>() {
                         @Override
-                        public void onSuccess(Location location) {
+                        public void onComplete(Task<Location> task) {
+                            Location location = task.isSuccessful() ? task.getResult() : null;
+                            if (location != null && (cached == null || location.getTime() > cached.getTime())) {
+                                cache.put(location);
+                            } else {
+                                location = cached;
+                            }
                             if (location != null) {
-                                call.resolve(formatLocation(location));
+                                call.resolve(getFormat(call.getCallbackId()).encode(location));
                             }
                         }
                     }
             );
-        } catch (SecurityException ignore) {}
+        } catch (SecurityException exception) {
+            if (cached != null) {
+                call.resolve(getFormat(call.getCallbackId()).encode(cached));
+            }
+        }
     }
 
     @PluginMethod(returnType = PluginMethod.RETURN_CALLBACK)
     public void addWatcher(final PluginCall call) {
-        if (service == null) {
-            call.reject("Service not running.");
-            return;
-        }
         call.setKeepAlive(true);
+        synchronized (pendingWatchers) {
+            // The service is bound asynchronously, so watchers added early,
+            // for example as the app starts, wait for it.
+            if (service == null) {
+                pendingWatchers.add(call);
+                return;
+            }
+        }
+        formats.put(call.getCallbackId(), Format.from(call));
 
         if (getPermissionState("location") != PermissionState.GRANTED) {
             if (call.getBoolean("requestPermissions", true)) {
@@ -159,7 +237,7 @@ public class BackgroundGeolocation extends Plugin {
         service.addWatcher(
                 call.getCallbackId(),
                 backgroundNotification,
-                call.getFloat("distanceFilter", 0f)
+                WatcherOptions.from(call)
         );
     }
 
@@ -188,7 +266,18 @@ public class BackgroundGeolocation extends Plugin {
             call.reject("Missing id.");
             return;
         }
-        service.removeWatcher(callbackId);
+        synchronized (pendingWatchers) {
+            for (int i = 0; i < pendingWatchers.size(); i++) {
+                if (pendingWatchers.get(i).getCallbackId().equals(callbackId)) {
+                    pendingWatchers.remove(i);
+                    break;
+                }
+            }
+        }
+        if (service != null) {
+            service.removeWatcher(callbackId);
+        }
+        formats.remove(callbackId);
         PluginCall savedCall = getBridge().getSavedCall(callbackId);
         if (savedCall != null) {
             savedCall.release(getBridge());
@@ -196,6 +285,388 @@ public class BackgroundGeolocation extends Plugin {
         call.resolve();
     }
 
+    @PluginMethod()
+    public void ack(PluginCall call) {
+        String callbackId = call.getString("id");
+        if (callbackId == null) {
+            call.reject("Missing id.");
+            return;
+        }
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        service.acknowledge(callbackId, Math.max(1, call.getInt("count", 1)));
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void removeAllWatchers(PluginCall call) {
+        ArrayList<String> callbackIds = new ArrayList<String>();
+        synchronized (pendingWatchers) {
+            for (PluginCall pending : pendingWatchers) {
+                callbackIds.add(pending.getCallbackId());
+            }
+            pendingWatchers.clear();
+        }
+        if (service != null) {
+            callbackIds.addAll(service.removeAllWatchers());
+        }
+        for (String callbackId : callbackIds) {
+            formats.remove(callbackId);
+            PluginCall savedCall = getBridge().getSavedCall(callbackId);
+            if (savedCall != null) {
+                savedCall.release(getBridge());
+            }
+        }
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void readJournal(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        ArrayList<Location> locations = new ArrayList<Location>();
+        long cursor;
+        try {
+            cursor = service.readJournal(
+                    call.getLong("cursor", 0L),
+                    Math.max(1, call.getInt("limit", 1000)),
+                    locations
+            );
+        } catch (IOException exception) {
+            call.reject("Failed to read journal.", exception);
+            return;
+        }
+        JSObject result = LocationEncoder.forName(call.getString("encoding")).encode(locations);
+        result.put("cursor", cursor);
+        call.resolve(result);
+    }
+
+    @PluginMethod()
+    public void acknowledgeJournal(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        Long cursor = call.getLong("cursor");
+        if (cursor == null) {
+            call.reject("Missing cursor.");
+            return;
+        }
+        try {
+            service.acknowledgeJournal(cursor);
+        } catch (IOException exception) {
+            call.reject("Failed to acknowledge journal.", exception);
+            return;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void setGeofences(PluginCall call) {
+        addGeofences(call, true);
+    }
+
+    @PluginMethod()
+    public void addGeofences(PluginCall call) {
+        addGeofences(call, false);
+    }
+
+    private void addGeofences(PluginCall call, boolean replace) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        JSArray array = call.getArray("geofences");
+        if (array == null) {
+            call.reject("Missing geofences.");
+            return;
+        }
+        ArrayList<GeofenceIndex.Geofence> fences = new ArrayList<GeofenceIndex.Geofence>(array.length());
+        try {
+            for (int i = 0; i < array.length(); i++) {
+                fences.add(parseGeofence(array.getJSONObject(i)));
+            }
+        } catch (JSONException | IllegalArgumentException exception) {
+            call.reject("Invalid geofence: " + exception.getMessage());
+            return;
+        }
+        service.addGeofences(fences, replace);
+        call.resolve();
+    }
+
+    // A geofence is either {id, latitude, longitude, radius} or
+    // {id, polygon: [[latitude, longitude], ...]}.
+    private static GeofenceIndex.Geofence parseGeofence(JSONObject obj) throws JSONException {
+        String id = obj.getString("id");
+        JSONArray polygon = obj.optJSONArray("polygon");
+        if (polygon == null) {
+            return GeofenceIndex.Geofence.circle(
+                    id,
+                    obj.getDouble("latitude"),
+                    obj.getDouble("longitude"),
+                    obj.getDouble("radius")
+            );
+        }
+        double[] vertices = new double[polygon.length() * 2];
+        for (int i = 0; i < polygon.length(); i++) {
+            JSONArray vertex = polygon.getJSONArray(i);
+            vertices[i * 2] = vertex.getDouble(0);
+            vertices[i * 2 + 1] = vertex.getDouble(1);
+        }
+        return GeofenceIndex.Geofence.polygon(id, vertices);
+    }
+
+    @PluginMethod()
+    public void removeGeofences(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        JSArray array = call.getArray("ids");
+        if (array == null) {
+            call.reject("Missing ids.");
+            return;
+        }
+        ArrayList<String> ids = new ArrayList<String>(array.length());
+        try {
+            for (int i = 0; i < array.length(); i++) {
+                ids.add(array.getString(i));
+            }
+        } catch (JSONException exception) {
+            call.reject("Invalid ids.");
+            return;
+        }
+        service.removeGeofences(ids);
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void configureUpload(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        if (call.getString("url") == null) {
+            call.reject("Missing url.");
+            return;
+        }
+        try {
+            service.configureUpload(call.getData());
+        } catch (IOException | JSONException exception) {
+            call.reject("Failed to configure upload.", exception);
+            return;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void stopUpload(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        try {
+            service.configureUpload(null);
+        } catch (IOException | JSONException exception) {
+            call.reject("Failed to stop upload.", exception);
+            return;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void getStats(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        call.resolve(service.getStats());
+    }
+
+    @PluginMethod()
+    public void startReplay(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        ReplaySource.Track track;
+        JSObject synthesize = call.getObject("synthesize");
+        try {
+            if (synthesize != null) {
+                track = new ReplaySource.SyntheticTrack(
+                        synthesize.optDouble("rate", 1),
+                        synthesize.getDouble("latitude"),
+                        synthesize.getDouble("longitude"),
+                        (float) synthesize.optDouble("speed", 10)
+                );
+            } else {
+                String format = call.getString("format", "csv");
+                String path = call.getString("path");
+                if (path != null && path.startsWith("file://")) {
+                    path = Uri.parse(path).getPath();
+                }
+                if ("journal".equals(format)) {
+                    track = service.openJournalTrack(path != null ? new File(path) : null);
+                } else if (path == null) {
+                    call.reject("Missing path.");
+                    return;
+                } else if ("gpx".equals(format)) {
+                    track = new ReplaySource.GpxTrack(new File(path));
+                } else if ("csv".equals(format)) {
+                    track = new ReplaySource.CsvTrack(new File(path));
+                } else {
+                    call.reject("Unknown format.");
+                    return;
+                }
+            }
+        } catch (IOException | JSONException exception) {
+            call.reject("Failed to open track.", exception);
+            return;
+        }
+        service.startReplay(track, call.getDouble("speed", 1.0));
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void stopReplay(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        service.stopReplay();
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void startSession(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        try {
+            service.startSession();
+        } catch (IOException exception) {
+            call.reject("Failed to start session.", exception);
+            return;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void stopSession(PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        call.resolve(service.stopSession());
+    }
+
+    @PluginMethod()
+    public void exportSession(final PluginCall call) {
+        if (service == null) {
+            call.reject("Service not running.");
+            return;
+        }
+        String path = call.getString("path");
+        if (path == null) {
+            call.reject("Missing path.");
+            return;
+        }
+        if (path.startsWith("file://")) {
+            path = Uri.parse(path).getPath();
+        }
+        final String format = call.getString("format", "binary");
+        if (!"binary".equals(format) && !"gpx".equals(format) && !"geojson".equals(format)) {
+            call.reject("Unknown format.");
+            return;
+        }
+        final File session;
+        try {
+            session = service.getSessionFile();
+        } catch (IOException exception) {
+            call.reject("Failed to export session.", exception);
+            return;
+        }
+        if (!session.exists()) {
+            call.reject("No session.");
+            return;
+        }
+        final File out = new File(path);
+        exporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long fixes = SessionRecorder.export(session, out, format);
+                    JSObject result = new JSObject();
+                    result.put("path", out.getAbsolutePath());
+                    result.put("fixes", fixes);
+                    result.put("bytes", out.length());
+                    call.resolve(result);
+                } catch (IOException exception) {
+                    call.reject("Failed to export session.", exception);
+                }
+            }
+        });
+    }
+
+    @PluginMethod()
+    public void getCurrentPosition(final PluginCall call) {
+        final LocationCache cache = LocationCache.getInstance(getContext());
+        Location cached = cache.get();
+        if (cached != null && LocationCache.getAge(cached) <= call.getInt("maximumAge", (int) LocationCache.FRESH_AGE)) {
+            call.resolve(encodeWithAge(cached));
+            return;
+        }
+        if (getPermissionState("location") != PermissionState.GRANTED) {
+            call.reject("Permission denied.", "NOT_AUTHORIZED");
+            return;
+        }
+        final CancellationTokenSource cancellation = new CancellationTokenSource();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                cancellation.cancel();
+            }
+        };
+        try {
+            LocationServices.getFusedLocationProviderClient(getContext()).getCurrentLocation(
+                    call.getBoolean("enableHighAccuracy", true)
+                            ? LocationRequest.PRIORITY_HIGH_ACCURACY
+                            : LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+                    cancellation.getToken()
+            ).addOnCompleteListener(new OnCompleteListener<Location>() {
+                @Override
+                public void onComplete(Task<Location> task) {
+                    handler.removeCallbacks(timeout);
+                    Location location = task.isSuccessful() ? task.getResult() : null;
+                    if (location != null) {
+                        cache.put(location);
+                        call.resolve(encodeWithAge(location));
+                    } else if (task.isCanceled()) {
+                        call.reject("Timed out.", "TIMEOUT");
+                    } else {
+                        call.reject("Location unavailable.");
+                    }
+                }
+            });
+        } catch (SecurityException exception) {
+            call.reject("Permission denied.", "NOT_AUTHORIZED");
+            return;
+        }
+        handler.postDelayed(timeout, call.getInt("timeout", 30000));
+    }
+
+    private static JSObject encodeWithAge(Location location) {
+        JSObject obj = LocationEncoder.OBJECT.encode(location);
+        obj.put("age", LocationCache.getAge(location));
+        return obj;
+    }
+
     @PluginMethod()
     public void openSettings(PluginCall call) {
         Intent intent = new Intent(Settings.ACTION_APPLICATION_DETAILS_SETTINGS);
@@ -221,44 +692,66 @@ public class BackgroundGeolocation extends Plugin {
         }
     }
 
-    private static JSObject formatLocation(Location location) {
-        JSObject obj = new JSObject();
-        obj.put("latitude", location.getLatitude());
-        obj.put("longitude", location.getLongitude());
-        // The docs state that all Location objects have an accuracy, but then why is there a
-        // hasAccuracy method? Better safe than sorry.
-        obj.put("accuracy", location.hasAccuracy() ? location.getAccuracy() : JSONObject.NULL);
-        obj.put("altitude", location.hasAltitude() ? location.getAltitude() : JSONObject.NULL);
-        if (Build.VERSION.SDK_INT >= 26 && location.hasVerticalAccuracy()) {
-            obj.put("altitudeAccuracy", location.getVerticalAccuracyMeters());
+    private Format getFormat(String id) {
+        Format format = formats.get(id);
+        return format == null ? Format.DEFAULT : format;
+    }
+
+    // Resolves a watcher's callback with the locations received from the service.
+    // Returns false if the watcher's callback has gone away.
+    private boolean deliver(String id, ArrayList<Location> locations) {
+        PluginCall call = getBridge().getSavedCall(id);
+        if (call == null) {
+            return false;
+        }
+        Format format = getFormat(id);
+        if (locations == null || locations.isEmpty()) {
+            Logger.debug("No locations received");
+        } else if (format.batched) {
+            // Batches are delivered in a single call, oldest location first.
+            call.resolve(format.encoder.encode(locations));
         } else {
-            obj.put("altitudeAccuracy", JSONObject.NULL);
-        }
-        // In addition to mocking locations in development, Android allows the
-        // installation of apps which have the power to simulate location
-        // readings in other apps.
-        obj.put("simulated", location.isFromMockProvider());
-        obj.put("speed", location.hasSpeed() ? location.getSpeed() : JSONObject.NULL);
-        obj.put("bearing", location.hasBearing() ? location.getBearing() : JSONObject.NULL);
-        obj.put("time", location.getTime());
-        return obj;
+            for (Location location : locations) {
+                call.resolve(format.encoder.encode(location));
+            }
+        }
+        return true;
     }
 
-    // Receives messages from the service.
+    // Receives messages broadcast by the service, which it falls back to if
+    // no listener is set.
     private class ServiceReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
+            String event = intent.getStringExtra("event");
+            if (event != null) {
+                try {
+                    notifyListeners(event, new JSObject(intent.getStringExtra("data")));
+                } catch (JSONException exception) {
+                    Logger.error("Malformed event", exception);
+                }
+                return;
+            }
             String id = intent.getStringExtra("id");
-            PluginCall call = getBridge().getSavedCall(id);
-            if (call == null) {
+            String data = intent.getStringExtra("data");
+            if (data != null) {
+                PluginCall call = getBridge().getSavedCall(id);
+                if (call != null) {
+                    try {
+                        call.resolve(new JSObject(data));
+                    } catch (JSONException exception) {
+                        Logger.error("Malformed result", exception);
+                    }
+                }
                 return;
             }
             Location location = intent.getParcelableExtra("location");
+            ArrayList<Location> locations = intent.getParcelableArrayListExtra("locations");
             if (location != null) {
-                call.resolve(formatLocation(location));
-            } else {
-                Logger.debug("No locations received");
+                locations = new ArrayList<Location>(1);
+                locations.add(location);
             }
+            deliver(id, locations);
         }
     }
 
@@ -305,7 +798,43 @@ public class BackgroundGeolocation extends Plugin {
                 new ServiceConnection() {
                     @Override
                     public void onServiceConnected(ComponentName name, IBinder binder) {
-                        BackgroundGeolocation.this.service = (BackgroundGeolocationService.LocalBinder) binder;
+                        BackgroundGeolocationService.LocalBinder service = (
+                                (BackgroundGeolocationService.LocalBinder) binder
+                        );
+                        service.setListener(
+                                new LocationDelivery.Listener() {
+                                    @Override
+                                    public boolean onLocations(String id, ArrayList<Location> locations) {
+                                        return deliver(id, locations);
+                                    }
+
+                                    @Override
+                                    public void onResult(String id, JSObject data) {
+                                        PluginCall call = getBridge().getSavedCall(id);
+                                        if (call != null) {
+                                            call.resolve(data);
+                                        }
+                                    }
+
+                                    @Override
+                                    public void onEvent(String event, JSObject data) {
+                                        notifyListeners(event, data);
+                                    }
+                                }
+                        );
+                        synchronized (pendingWatchers) {
+                            BackgroundGeolocation.this.service = service;
+                            // Every call still pending is replayed, since
+                            // removing a watcher takes it out of the list.
+                            // Replaying under the lock means a watcher
+                            // removed meanwhile is either still pending or
+                            // already added, never added after its removal.
+                            ArrayList<PluginCall> pending = new ArrayList<PluginCall>(pendingWatchers);
+                            pendingWatchers.clear();
+                            for (PluginCall call : pending) {
+                                addWatcher(call);
+                            }
+                        }
                     }
 
                     @Override
@@ -342,6 +871,7 @@ public class BackgroundGeolocation extends Plugin {
         if (service != null) {
             service.stopService();
         }
+        exporter.shutdown();
         super.handleOnDestroy();
     }
 }
@@ -1,14 +1,24 @@
 package com.equimaps.capacitor_background_geolocation;
 
+import android.app.AlarmManager;
 import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.location.Location;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 
+import com.getcapacitor.JSObject;
 import com.getcapacitor.Logger;
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationAvailability;
@@ -17,7 +27,14 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 
-import java.util.HashSet;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -33,14 +50,471 @@ public class BackgroundGeolocationService extends Service {
     // Must be unique for this application.
     private static final int NOTIFICATION_ID = 28351;
 
-    private class Watcher {
+    private class Watcher extends LocationMultiplexer.Subscription implements GeofenceIndex.Tracker.Listener {
         public String id;
-        public FusedLocationProviderClient client;
-        public LocationRequest locationRequest;
-        public LocationCallback locationCallback;
         public Notification backgroundNotification;
+        public LocationBatcher<Location> batcher;
+        public Runnable flushTask;
+        // Only set for adaptive watchers, which slow down while stationary.
+        public AdaptiveSampler sampler;
+        public long movingInterval;
+        // Motion gated watchers are taken out of the multiplexer while the
+        // device is stationary.
+        public boolean motionGating;
+        public int movingPriority;
+        public float maxAccuracy;
+        public TrackSimplifier simplifier;
+        // Releases the location the simplifier holds once no more have
+        // arrived for the maximum delay.
+        public Runnable simplifyTask;
+        public long simplifyMaxDelay;
+        public KalmanFilter smoother;
+        // Only set for geofencing watchers, which receive transitions rather
+        // than locations.
+        public GeofenceIndex.Tracker geofenceTracker;
+        // Only set for watchers with a heartbeat, which re-delivers the last
+        // location whenever none has arrived for the heartbeat interval.
+        public TimerWheel.Timer heartbeat;
+        public long heartbeatInterval;
+        public Location lastLocation;
+        // Only set for watchers with flow control. Only touched on the
+        // service's thread.
+        public DeliveryBuffer buffer;
+        private Location current;
+        public PipelineStats.Counters counters;
+        // Set once the watcher is removed. Locations are dispatched outside
+        // the multiplexer's lock, so may still arrive afterwards.
+        public volatile boolean removed = false;
+
+        @Override
+        void onRejected(int count) {
+            counters.filtered.addAndGet(count);
+        }
+
+        @Override
+        void onLocations(ArrayList<Location> locations) {
+            if (removed) {
+                return;
+            }
+            if (sampler != null) {
+                for (Location location : locations) {
+                    adapt(this, location);
+                }
+            }
+            if (maxAccuracy > 0 || smoother != null || simplifier != null || geofenceTracker != null) {
+                ArrayList<Location> kept = new ArrayList<Location>(locations.size());
+                for (Location location : locations) {
+                    // Jittery, inaccurate locations are rejected outright.
+                    if (maxAccuracy > 0 && location.hasAccuracy() && location.getAccuracy() > maxAccuracy) {
+                        counters.filtered.incrementAndGet();
+                        continue;
+                    }
+                    if (smoother != null) {
+                        location = smooth(smoother, location);
+                    }
+                    if (geofenceTracker != null) {
+                        current = location;
+                        geofenceTracker.update(
+                                geofences,
+                                location.getLatitude(),
+                                location.getLongitude(),
+                                location.getElapsedRealtimeNanos() / 1000000,
+                                this
+                        );
+                        continue;
+                    }
+                    if (simplifier != null) {
+                        location = simplifier.add(location);
+                        // Locations held in the window are only counted
+                        // once they are dropped, since they may be kept.
+                        if (simplifier.getDiscarded() > 0) {
+                            counters.filtered.addAndGet(simplifier.getDiscarded());
+                        }
+                        if (location == null) {
+                            continue;
+                        }
+                    }
+                    kept.add(location);
+                }
+                if (simplifier != null) {
+                    handler.removeCallbacks(simplifyTask);
+                    if (simplifier.isHolding()) {
+                        handler.postDelayed(simplifyTask, simplifyMaxDelay);
+                    }
+                }
+                if (kept.isEmpty()) {
+                    return;
+                }
+                locations = kept;
+            }
+            enqueue(this, locations);
+        }
+
+        @Override
+        public void onTransition(String fenceId, String transition) {
+            JSObject data = new JSObject();
+            data.put("geofence", fenceId);
+            data.put("transition", transition);
+            data.put("location", LocationEncoder.OBJECT.encode(current));
+            deliverResult(id, data);
+        }
+    }
+    // Watchers are added and removed by the plugin while their locations are
+    // processed on the service's thread. The service is in the foreground
+    // while any watcher has a background notification, and the motion
+    // monitor runs while any is motion gated.
+    private final WatcherRegistry<Watcher> watchers = new WatcherRegistry<Watcher>(
+            new WatcherRegistry.Listener<Watcher>() {
+                @Override
+                public void onPromote(Watcher watcher) {
+                    // Ideally we would only call 'startForeground' if the service is not already
+                    // foregrounded. Unfortunately, 'getForegroundServiceType' was only introduced
+                    // in API level 29 and seems to behave weirdly, as reported in #120. However,
+                    // it appears that 'startForeground' is idempotent, so we just call it repeatedly
+                    // each time a background watcher is added.
+                    try {
+                        // This method has been known to fail due to weird
+                        // permission bugs, so we prevent any exceptions from
+                        // crashing the app. See issue #86.
+                        startForeground(NOTIFICATION_ID, watcher.backgroundNotification);
+                    } catch (Exception exception) {
+                        Logger.error("Failed to foreground service", exception);
+                    }
+                }
+
+                @Override
+                public void onDemote() {
+                    stopForeground(true);
+                }
+
+                @Override
+                public void onGatingStarted() {
+                    handler.post(startMotionGating);
+                }
+
+                @Override
+                public void onGatingStopped() {
+                    handler.post(stopMotionGating);
+                }
+            }
+    );
+    // Location callbacks, filtering and batching all happen on this thread,
+    // keeping them off the main thread, which is busy rendering the app.
+    private final HandlerThread thread = new HandlerThread("BackgroundGeolocation");
+    private Handler handler;
+    // Heartbeats share a single timer wheel, which is ticked on the service's
+    // thread for as long as any timer is scheduled. The tick stops while the
+    // CPU sleeps, so an alarm is also kept set for the earliest deadline, to
+    // wake the device. Under Doze, alarms fire at most every few minutes, and
+    // without permission to schedule exact alarms they may be deferred, so
+    // heartbeats are best-effort.
+    static final long TIMER_TICK = 1000;
+    static final int TIMER_SLOTS = 512;
+    private static final String HEARTBEAT_ACTION = BackgroundGeolocationService.class.getName() + ".HEARTBEAT";
+    private TimerWheel timers;
+    private boolean ticking = false;
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+    private AlarmManager alarms;
+    private PendingIntent alarmIntent;
+    // The time the alarm is set for, or Long.MAX_VALUE if it is not set.
+    private long alarmDeadline = Long.MAX_VALUE;
+    private final BroadcastReceiver alarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            alarmDeadline = Long.MAX_VALUE;
+            tick();
+            // Heartbeats that expired have already set the alarm again, but
+            // other timers may be due sooner.
+            long next = timers.getNextDeadline();
+            if (next < alarmDeadline) {
+                setAlarm(next);
+            }
+        }
+    };
+    private LocationJournal journal = null;
+    // Watchers share fixes, so they are journaled and queued for upload once
+    // each after being dispatched, as received from the provider rather than
+    // as smoothed by a watcher. Multiplexer sink bits.
+    static final int JOURNAL = 1;
+    static final int UPLOAD = 2;
+    private LocationUploader uploader = null;
+    private final PipelineStats stats = new PipelineStats();
+    // Numbers each spill directory.
+    private final AtomicInteger spills = new AtomicInteger();
+    private final LocationDelivery delivery = new LocationDelivery(stats);
+    private final GeofenceIndex geofences = new GeofenceIndex();
+    // Motion gating state, only touched on the service's thread. The monitor
+    // runs while there are motion gated watchers.
+    private MotionGate gate = new MotionGate();
+    private MotionMonitor motionMonitor = null;
+    // Whether motion gated watchers are suspended. Guarded by the
+    // multiplexer.
+    private boolean stationary = false;
+
+    // A single fused location subscription is shared by every watcher.
+    private FusedLocationProviderClient client;
+    private final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            onLocations(locationResult.getLocations(), false);
+        }
+        @Override
+        public void onLocationAvailability(LocationAvailability availability) {
+            stats.setAvailable(availability.isLocationAvailable(), SystemClock.elapsedRealtime());
+            if (!availability.isLocationAvailable()) {
+                Logger.debug("Location not available");
+            }
+        }
+    };
+    private final LocationMultiplexer.Source fusedSource = new LocationMultiplexer.Source() {
+        @Override
+        public void requestUpdates(
+                long interval,
+                long fastestInterval,
+                int priority,
+                long maxWaitTime,
+                float smallestDisplacement
+        ) {
+            LocationRequest locationRequest = new LocationRequest();
+            // The fused provider may hold locations back for up to the max
+            // wait time, delivering them together in a single LocationResult.
+            // This lets the device sleep between batches.
+            locationRequest.setMaxWaitTime(maxWaitTime);
+            locationRequest.setInterval(interval);
+            locationRequest.setFastestInterval(fastestInterval);
+            locationRequest.setPriority(priority);
+            locationRequest.setSmallestDisplacement(smallestDisplacement);
+            // According to Android Studio, this method can throw a Security Exception if
+            // permissions are not yet granted. Rather than check the permissions, which is fiddly,
+            // we simply ignore the exception.
+            try {
+                client.requestLocationUpdates(locationRequest, locationCallback, thread.getLooper());
+            } catch (SecurityException ignore) {}
+        }
+
+        @Override
+        public void removeUpdates() {
+            client.removeLocationUpdates(locationCallback);
+        }
+    };
+    private final LocationMultiplexer multiplexer = new LocationMultiplexer(fusedSource);
+    // Set while a replay stands in for the fused location provider.
+    private volatile ReplaySource replay = null;
+    private LocationCache cache;
+    // Set while a session is being recorded.
+    private volatile SessionRecorder session = null;
+
+    // Receives locations from whichever source is active. Simulated
+    // locations, from a replay, are kept out of the cache, the journal and
+    // the upload queue, which are only for real ones.
+    private void onLocations(List<Location> locations, boolean simulated) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (Location location : locations) {
+            stats.providerLag.record(now - location.getElapsedRealtimeNanos());
+            if (motionMonitor != null) {
+                MotionGate.State state = gate.onLocation(
+                        location.getLatitude(),
+                        location.getLongitude(),
+                        location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE,
+                        location.hasSpeed() ? location.getSpeed() : -1f,
+                        location.getElapsedRealtimeNanos() / 1000000
+                );
+                if (state != null) {
+                    onMotionChange(state);
+                }
+            }
+        }
+        if (!simulated && !locations.isEmpty()) {
+            cache.put(locations.get(locations.size() - 1));
+        }
+        SessionRecorder recorder = session;
+        if (recorder != null) {
+            try {
+                for (Location location : locations) {
+                    recorder.append(location);
+                }
+            } catch (IOException exception) {
+                Logger.error("Failed to record session", exception);
+            }
+        }
+        int[] sinks = multiplexer.dispatch(locations);
+        if (sinks != null && !simulated) {
+            int index = 0;
+            for (Location location : locations) {
+                int sink = sinks[index++];
+                if ((sink & JOURNAL) != 0 && journal != null) {
+                    try {
+                        journal.append(location);
+                    } catch (IOException exception) {
+                        Logger.error("Failed to journal location", exception);
+                    }
+                }
+                if ((sink & UPLOAD) != 0 && uploader != null) {
+                    uploader.append(location);
+                }
+            }
+        }
+    }
+
+    private final MotionMonitor.Listener motionListener = new MotionMonitor.Listener() {
+        @Override
+        public void onChange(MotionGate.State state) {
+            onMotionChange(state);
+        }
+    };
+
+    private final Runnable startMotionGating = new Runnable() {
+        @Override
+        public void run() {
+            if (motionMonitor == null) {
+                motionMonitor = new MotionMonitor(BackgroundGeolocationService.this, handler, gate, motionListener);
+                motionMonitor.start();
+            }
+        }
+    };
+
+    private final Runnable stopMotionGating = new Runnable() {
+        @Override
+        public void run() {
+            if (motionMonitor != null) {
+                motionMonitor.stop();
+                motionMonitor = null;
+            }
+            gate = new MotionGate();
+            // A gated watcher may have been added, suspended, since the
+            // last one was removed.
+            setStationary(false);
+        }
+    };
+
+    // Suspends or resumes the motion gated watchers.
+    private void setStationary(boolean stationary) {
+        synchronized (multiplexer) {
+            this.stationary = stationary;
+            for (Watcher watcher : watchers.values()) {
+                if (!watcher.motionGating) {
+                    continue;
+                }
+                if (stationary) {
+                    multiplexer.remove(watcher);
+                    // The simplifier holds where the device stopped, which
+                    // would otherwise wait until it moves again.
+                    if (watcher.simplifier != null) {
+                        handler.removeCallbacks(watcher.simplifyTask);
+                        handler.post(watcher.simplifyTask);
+                    }
+                } else {
+                    multiplexer.add(watcher);
+                }
+            }
+        }
+    }
+
+    // Called on the service's thread when the motion gate opens or closes.
+    private void onMotionChange(MotionGate.State state) {
+        motionMonitor.onChange(state);
+        setStationary(state == MotionGate.State.STATIONARY);
+        JSObject data = new JSObject();
+        data.put("state", state == MotionGate.State.STATIONARY ? "stationary" : "moving");
+        data.put("time", System.currentTimeMillis());
+        emit("motionChange", data);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        cache = LocationCache.getInstance(this);
+        // Spilled locations do not outlive their watchers, so any left by a
+        // previous process are stale.
+        DeliveryBuffer.deleteDirectory(new File(getCacheDir(), SPILL_DIRECTORY));
+        timers = new TimerWheel(TIMER_TICK, TIMER_SLOTS, SystemClock.elapsedRealtime());
+        alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmIntent = PendingIntent.getBroadcast(
+                this,
+                0,
+                new Intent(HEARTBEAT_ACTION).setPackage(getPackageName()),
+                Build.VERSION.SDK_INT >= 23 ? PendingIntent.FLAG_IMMUTABLE : 0
+        );
+        // The alarm is received on the service's thread.
+        IntentFilter filter = new IntentFilter(HEARTBEAT_ACTION);
+        if (Build.VERSION.SDK_INT >= 33) {
+            registerReceiver(alarmReceiver, filter, null, handler, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            registerReceiver(alarmReceiver, filter, null, handler);
+        }
+        client = LocationServices.getFusedLocationProviderClient(this);
+        delivery.start();
+        try {
+            journal = new LocationJournal(new File(getFilesDir(), JOURNAL_DIRECTORY));
+        } catch (IOException exception) {
+            Logger.error("Failed to open location journal", exception);
+        }
+        try {
+            uploader = new LocationUploader(
+                    new LocationJournal(new File(getFilesDir(), "background-geolocation-upload"))
+            );
+            // Resume uploading anything left over from a previous process.
+            String config = getPreferences().getString(UPLOAD_CONFIG, null);
+            if (config != null) {
+                uploader.configure(LocationUploader.Config.from(new JSObject(config)));
+            }
+        } catch (IOException | JSONException exception) {
+            Logger.error("Failed to start uploader", exception);
+        }
+    }
+
+    private static final String UPLOAD_CONFIG = "uploadConfig";
+    private static final String JOURNAL_DIRECTORY = "background-geolocation-journal";
+    private static final String SPILL_DIRECTORY = "background-geolocation-spill";
+    private static final String SESSION_FILE = "background-geolocation-session";
+
+    private SharedPreferences getPreferences() {
+        return getSharedPreferences(
+                BackgroundGeolocationService.class.getPackage().getName(),
+                Context.MODE_PRIVATE
+        );
+    }
+
+    @Override
+    public void onDestroy() {
+        alarms.cancel(alarmIntent);
+        unregisterReceiver(alarmReceiver);
+        thread.quitSafely();
+        delivery.stop();
+        cache.flush();
+        closeSession();
+        if (journal != null) {
+            journal.close();
+        }
+        if (uploader != null) {
+            uploader.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    // Stops recording the session, if one is being recorded.
+    private synchronized JSObject closeSession() {
+        JSObject result = new JSObject();
+        SessionRecorder recorder = session;
+        session = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException exception) {
+                Logger.error("Failed to close session", exception);
+            }
+            result.put("fixes", recorder.getCount());
+            result.put("bytes", recorder.getSize());
+        }
+        return result;
     }
-    private HashSet<Watcher> watchers = new HashSet<Watcher>();
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -53,21 +527,261 @@ public class BackgroundGeolocationService extends Service {
     // service is terminated immediately.
     @Override
     public boolean onUnbind(Intent intent) {
-        for (Watcher watcher : watchers) {
-            watcher.client.removeLocationUpdates(watcher.locationCallback);
+        multiplexer.clear();
+        for (Watcher watcher : watchers.clear()) {
+            watcher.removed = true;
+            handler.removeCallbacks(watcher.flushTask);
+            if (watcher.simplifyTask != null) {
+                handler.removeCallbacks(watcher.simplifyTask);
+            }
+            stopHeartbeat(watcher);
+            closeBuffer(watcher);
+            stats.removeWatcher(watcher.id, watcher.counters);
         }
-        watchers = new HashSet<Watcher>();
+        delivery.setListener(null);
         stopSelf();
         return false;
     }
 
-    Notification getNotification() {
-        for (Watcher watcher : watchers) {
-            if (watcher.backgroundNotification != null) {
-                return watcher.backgroundNotification;
+    // Stops a watcher that has already been taken out of the registry, which
+    // demotes the service if it was the last background watcher.
+    private void discard(Watcher watcher) {
+        watcher.removed = true;
+        multiplexer.remove(watcher);
+        stats.removeWatcher(watcher.id, watcher.counters);
+        handler.removeCallbacks(watcher.flushTask);
+        if (watcher.simplifyTask != null) {
+            handler.removeCallbacks(watcher.simplifyTask);
+        }
+        stopHeartbeat(watcher);
+        closeBuffer(watcher);
+    }
+
+    // Schedules a watcher's next heartbeat one interval from now. Only
+    // called on the service's thread.
+    private void scheduleHeartbeat(Watcher watcher) {
+        long deadline = SystemClock.elapsedRealtime() + watcher.heartbeatInterval;
+        timers.schedule(watcher.heartbeat, deadline);
+        if (!ticking) {
+            ticking = true;
+            handler.postDelayed(tickTask, TIMER_TICK);
+        }
+        // Deadlines mostly move later, as heartbeats are put off by new
+        // locations, so the alarm is left early and re-armed when it fires.
+        if (deadline < alarmDeadline) {
+            setAlarm(deadline);
+        }
+    }
+
+    // Expires any heartbeats that are due. Only called on the service's
+    // thread.
+    private void tick() {
+        timers.advance(SystemClock.elapsedRealtime());
+        handler.removeCallbacks(tickTask);
+        if (timers.isEmpty()) {
+            ticking = false;
+            alarms.cancel(alarmIntent);
+            alarmDeadline = Long.MAX_VALUE;
+        } else {
+            handler.postDelayed(tickTask, TIMER_TICK);
+        }
+    }
+
+    // Sets the alarm that wakes the device for the next heartbeat, replacing
+    // any previous alarm. Exact alarms need the app to hold the
+    // SCHEDULE_EXACT_ALARM permission on Android 12 and above.
+    private void setAlarm(long deadline) {
+        alarmDeadline = deadline;
+        int type = AlarmManager.ELAPSED_REALTIME_WAKEUP;
+        if (Build.VERSION.SDK_INT >= 31 && !alarms.canScheduleExactAlarms()) {
+            alarms.setAndAllowWhileIdle(type, deadline, alarmIntent);
+        } else if (Build.VERSION.SDK_INT >= 23) {
+            alarms.setExactAndAllowWhileIdle(type, deadline, alarmIntent);
+        } else {
+            alarms.setExact(type, deadline, alarmIntent);
+        }
+    }
+
+    private void stopHeartbeat(final Watcher watcher) {
+        if (watcher.heartbeat != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    timers.cancel(watcher.heartbeat);
+                }
+            });
+        }
+    }
+
+    // While stationary, an adaptive watcher asks for balanced power locations
+    // at a much longer interval. Enough to notice when it starts moving again.
+    static final long STATIONARY_INTERVAL = 30000;
+
+    private void adapt(Watcher watcher, Location location) {
+        AdaptiveSampler.State state = watcher.sampler.update(
+                location.getLatitude(),
+                location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE,
+                location.hasSpeed() ? location.getSpeed() : -1f,
+                location.getElapsedRealtimeNanos() / 1000000
+        );
+        if (state == null) {
+            return;
+        }
+        if (state == AdaptiveSampler.State.STATIONARY) {
+            watcher.interval = Math.max(watcher.movingInterval, STATIONARY_INTERVAL);
+            watcher.priority = Math.max(
+                    watcher.movingPriority,
+                    LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY
+            );
+        } else {
+            watcher.interval = watcher.movingInterval;
+            watcher.priority = watcher.movingPriority;
+        }
+        multiplexer.update();
+        JSObject data = new JSObject();
+        data.put("id", watcher.id);
+        data.put("state", state == AdaptiveSampler.State.STATIONARY ? "stationary" : "moving");
+        data.put("interval", watcher.interval);
+        data.put("time", location.getTime());
+        emit("samplingChange", data);
+    }
+
+    // Returns a smoothed copy of the location. The location itself may be
+    // shared with other watchers, so is left alone.
+    private static Location smooth(KalmanFilter filter, Location location) {
+        boolean accuracies = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        filter.update(
+                location.getLatitude(),
+                location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : -1f,
+                location.hasSpeed() ? location.getSpeed() : -1f,
+                accuracies && location.hasSpeedAccuracy() ? location.getSpeedAccuracyMetersPerSecond() : -1f,
+                location.hasBearing() ? location.getBearing() : -1f,
+                accuracies && location.hasBearingAccuracy() ? location.getBearingAccuracyDegrees() : -1f,
+                location.getElapsedRealtimeNanos() / 1000000
+        );
+        Location smoothed = new Location(location);
+        smoothed.setLatitude(filter.getLatitude());
+        smoothed.setLongitude(filter.getLongitude());
+        smoothed.setAccuracy(filter.getAccuracy());
+        if (location.hasSpeed()) {
+            smoothed.setSpeed(filter.getSpeed());
+        }
+        if (location.hasBearing()) {
+            smoothed.setBearing(filter.getBearing());
+        }
+        return smoothed;
+    }
+
+    // Sends an event to the plugin's listeners.
+    private void emit(String event, JSObject data) {
+        if (delivery.hasListener()) {
+            delivery.offerEvent(event, data);
+            return;
+        }
+        Intent intent = new Intent(ACTION_BROADCAST);
+        intent.putExtra("event", event);
+        intent.putExtra("data", data.toString());
+        LocalBroadcastManager.getInstance(
+                getApplicationContext()
+        ).sendBroadcast(intent);
+    }
+
+    // Resolves a watcher's callback with an arbitrary result.
+    private void deliverResult(String id, JSObject data) {
+        if (delivery.hasListener()) {
+            delivery.offerResult(id, data);
+            return;
+        }
+        Intent intent = new Intent(ACTION_BROADCAST);
+        intent.putExtra("id", id);
+        intent.putExtra("data", data.toString());
+        LocalBroadcastManager.getInstance(
+                getApplicationContext()
+        ).sendBroadcast(intent);
+    }
+
+    // Delivers locations directly to the plugin's listener if it has one,
+    // falling back to a local broadcast otherwise.
+    private void deliver(String id, ArrayList<Location> locations) {
+        if (delivery.hasListener()) {
+            delivery.offer(id, locations);
+            return;
+        }
+        // Without a listener, there is no telling whether the broadcast
+        // reaches a callback, so it is counted as delivered.
+        PipelineStats.Counters counters = stats.getWatcher(id);
+        if (counters != null) {
+            counters.delivered.addAndGet(locations.size());
+        }
+        Intent intent = new Intent(ACTION_BROADCAST);
+        intent.putExtra("id", id);
+        if (locations.size() == 1) {
+            intent.putExtra("location", locations.get(0));
+        } else {
+            intent.putParcelableArrayListExtra("locations", locations);
+        }
+        LocalBroadcastManager.getInstance(
+                getApplicationContext()
+        ).sendBroadcast(intent);
+    }
+
+    // Hands a watcher's locations to the plugin, through its buffer if it has
+    // flow control.
+    private void release(Watcher watcher, ArrayList<Location> locations) {
+        if (watcher.buffer == null) {
+            deliver(watcher.id, locations);
+            return;
+        }
+        int dropped = watcher.buffer.add(locations);
+        if (dropped > 0) {
+            watcher.counters.dropped.addAndGet(dropped);
+        }
+        pump(watcher);
+    }
+
+    // Delivers as much of a watcher's buffer as its credits allow.
+    private void pump(Watcher watcher) {
+        ArrayList<Location> locations;
+        while ((locations = watcher.buffer.poll()) != null) {
+            deliver(watcher.id, locations);
+        }
+    }
+
+    private void closeBuffer(final Watcher watcher) {
+        if (watcher.buffer != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    watcher.buffer.close();
+                }
+            });
+        }
+    }
+
+    // Feeds a watcher's locations into its batcher, delivering any batches
+    // that fill up. If locations remain pending, a flush is scheduled so that
+    // they are not held for longer than the batch latency.
+    private void enqueue(Watcher watcher, Iterable<Location> locations) {
+        long now = SystemClock.elapsedRealtime();
+        for (Location location : locations) {
+            ArrayList<Location> batch = watcher.batcher.add(location, now);
+            if (batch != null) {
+                handler.removeCallbacks(watcher.flushTask);
+                release(watcher, batch);
             }
         }
-        return null;
+        if (watcher.heartbeat != null) {
+            for (Location location : locations) {
+                watcher.lastLocation = location;
+            }
+            scheduleHeartbeat(watcher);
+        }
+        if (!watcher.batcher.isEmpty()) {
+            handler.removeCallbacks(watcher.flushTask);
+            handler.postDelayed(watcher.flushTask, watcher.batcher.delayUntilDue(now));
+        }
     }
 
     // Handles requests from the activity.
@@ -75,97 +789,290 @@ public class BackgroundGeolocationService extends Service {
         void addWatcher(
                 final String id,
                 Notification backgroundNotification,
-                float distanceFilter
+                WatcherOptions options
         ) {
-            FusedLocationProviderClient client = LocationServices.getFusedLocationProviderClient(
-                    BackgroundGeolocationService.this
+            final Watcher watcher = new Watcher();
+            // The interval is also filtered by the multiplexer, so locations
+            // arriving faster for other watchers are not delivered to this
+            // one.
+            watcher.interval = Math.max(options.interval, options.minInterval);
+            watcher.fastestInterval = Math.min(options.fastestInterval, watcher.interval);
+            watcher.minInterval = options.minInterval;
+            watcher.priority = options.priority;
+            watcher.maxWaitTime = Math.max(options.maxWaitTime, options.maxBatchLatency);
+            watcher.distanceFilter = options.distanceFilter;
+            watcher.movingInterval = watcher.interval;
+            watcher.movingPriority = watcher.priority;
+            if (options.adaptive) {
+                watcher.sampler = new AdaptiveSampler(options.stationaryTimeout);
+            }
+            watcher.motionGating = options.motionGating;
+            watcher.maxAccuracy = options.maxAccuracy;
+            if (options.simplifyTolerance > 0) {
+                watcher.simplifier = new TrackSimplifier(options.simplifyTolerance, options.simplifyMaxDelay);
+                watcher.simplifyMaxDelay = options.simplifyMaxDelay;
+                watcher.simplifyTask = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (watcher.removed) {
+                            return;
+                        }
+                        Location location = watcher.simplifier.flush();
+                        if (watcher.simplifier.getDiscarded() > 0) {
+                            watcher.counters.filtered.addAndGet(watcher.simplifier.getDiscarded());
+                        }
+                        if (location != null) {
+                            enqueue(watcher, Collections.singletonList(location));
+                        }
+                    }
+                };
+            }
+            if (options.smoothing > 0) {
+                watcher.smoother = new KalmanFilter(options.smoothing);
+            }
+            if (options.geofence) {
+                watcher.geofenceTracker = new GeofenceIndex.Tracker(options.dwellTime);
+            }
+            watcher.id = id;
+            watcher.counters = stats.addWatcher(id);
+            watcher.backgroundNotification = backgroundNotification;
+            watcher.batcher = new LocationBatcher<Location>(options.batchSize, options.maxBatchLatency);
+            if (options.journal) {
+                watcher.sinks |= JOURNAL;
+            }
+            if (options.upload) {
+                watcher.sinks |= UPLOAD;
+            }
+            if (options.maxInFlight > 0) {
+                watcher.buffer = new DeliveryBuffer(
+                        options.bufferSize,
+                        options.overflow,
+                        options.maxInFlight,
+                        options.batchSize,
+                        // Each buffer has its own directory, because a
+                        // replaced watcher's buffer is closed, and its
+                        // directory deleted, after its replacement opens.
+                        new File(
+                                getCacheDir(),
+                                SPILL_DIRECTORY + "/" + id.replaceAll("[^A-Za-z0-9_-]", "_") +
+                                "-" + spills.incrementAndGet()
+                        )
+                );
+            }
+            watcher.flushTask = new Runnable() {
+                @Override
+                public void run() {
+                    if (watcher.removed) {
+                        return;
+                    }
+                    ArrayList<Location> batch = watcher.batcher.flush();
+                    if (batch != null) {
+                        release(watcher, batch);
+                    }
+                }
+            };
+            if (options.heartbeatInterval > 0) {
+                watcher.heartbeatInterval = options.heartbeatInterval;
+                watcher.heartbeat = new TimerWheel.Timer() {
+                    @Override
+                    void onExpired(long now) {
+                        if (watcher.lastLocation != null) {
+                            ArrayList<Location> locations = new ArrayList<Location>(1);
+                            locations.add(watcher.lastLocation);
+                            release(watcher, locations);
+                        }
+                        scheduleHeartbeat(watcher);
+                    }
+                };
+            }
+            // A watcher re-added under the same ID replaces the old one.
+            // Adding a background watcher promotes the service to the
+            // foreground.
+            Watcher previous = watchers.put(
+                    id,
+                    watcher,
+                    backgroundNotification != null,
+                    watcher.motionGating
             );
-            LocationRequest locationRequest = new LocationRequest();
-            locationRequest.setMaxWaitTime(1000);
-            locationRequest.setInterval(1000);
-            locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-            locationRequest.setSmallestDisplacement(distanceFilter);
+            if (previous != null) {
+                discard(previous);
+            }
+            synchronized (multiplexer) {
+                // While stationary, a motion gated watcher starts suspended.
+                if (!watcher.motionGating || !stationary) {
+                    multiplexer.add(watcher);
+                }
+            }
+            if (watcher.heartbeat != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The watcher may have been removed in the meantime.
+                        if (watchers.get(id) == watcher) {
+                            scheduleHeartbeat(watcher);
+                        }
+                    }
+                });
+            }
+        }
+
+        void removeWatcher(String id) {
+            Watcher watcher = watchers.remove(id);
+            if (watcher != null) {
+                discard(watcher);
+            }
+        }
+
+        // Removes every watcher, returning their IDs.
+        ArrayList<String> removeAllWatchers() {
+            ArrayList<String> ids = watchers.ids();
+            for (String id : ids) {
+                removeWatcher(id);
+            }
+            return ids;
+        }
+
+        void onPermissionsGranted() {
+            // If permissions were granted while the app was in the background, for example in
+            // the Settings app, the subscription needs restarting.
+            multiplexer.restart();
+        }
+
+        // Adds geofences, first removing every existing geofence if 'replace'
+        // is true.
+        void addGeofences(List<GeofenceIndex.Geofence> fences, boolean replace) {
+            if (replace) {
+                geofences.replace(fences);
+            } else {
+                geofences.add(fences);
+            }
+        }
+
+        void removeGeofences(List<String> ids) {
+            for (String id : ids) {
+                geofences.remove(id);
+            }
+        }
+
+        // Starts uploading with the given options, or stops if they are null.
+        // The options are remembered so that uploading resumes if the
+        // service is restarted.
+        void configureUpload(JSObject options) throws IOException, JSONException {
+            if (uploader == null) {
+                throw new IOException("Uploader unavailable.");
+            }
+            if (options == null) {
+                uploader.configure(null);
+                getPreferences().edit().remove(UPLOAD_CONFIG).apply();
+            } else {
+                uploader.configure(LocationUploader.Config.from(options));
+                getPreferences().edit().putString(UPLOAD_CONFIG, options.toString()).apply();
+            }
+        }
 
-            LocationCallback callback = new LocationCallback(){
+        // Returns credits to a watcher with flow control once the app has
+        // handled that many of its deliveries.
+        void acknowledge(final String id, final int count) {
+            handler.post(new Runnable() {
                 @Override
-                public void onLocationResult(LocationResult locationResult) {
-                    Location location = locationResult.getLastLocation();
-                    Intent intent = new Intent(ACTION_BROADCAST);
-                    intent.putExtra("location", location);
-                    intent.putExtra("id", id);
-                    LocalBroadcastManager.getInstance(
-                            getApplicationContext()
-                    ).sendBroadcast(intent);
+                public void run() {
+                    Watcher watcher = watchers.get(id);
+                    if (watcher != null && watcher.buffer != null) {
+                        watcher.buffer.acknowledge(count);
+                        pump(watcher);
+                    }
                 }
+            });
+        }
+
+        // Replaces the fused location provider with a replayed track, played
+        // at the given speed factor, until stopReplay is called.
+        void startReplay(ReplaySource.Track track, double speed) {
+            ReplaySource source = new ReplaySource(handler, track, speed, new ReplaySource.Sink() {
                 @Override
-                public void onLocationAvailability(LocationAvailability availability) {
-                    if (!availability.isLocationAvailable()) {
-                        Logger.debug("Location not available");
-                    }
+                public void onLocations(ArrayList<Location> locations) {
+                    BackgroundGeolocationService.this.onLocations(locations, true);
                 }
-            };
+            });
+            synchronized (multiplexer) {
+                multiplexer.setSource(source);
+                if (replay != null) {
+                    replay.close();
+                }
+                replay = source;
+            }
+        }
 
-            Watcher watcher = new Watcher();
-            watcher.id = id;
-            watcher.client = client;
-            watcher.locationRequest = locationRequest;
-            watcher.locationCallback = callback;
-            watcher.backgroundNotification = backgroundNotification;
-            watchers.add(watcher);
+        void stopReplay() {
+            synchronized (multiplexer) {
+                if (replay != null) {
+                    multiplexer.setSource(fusedSource);
+                    replay.close();
+                    replay = null;
+                }
+            }
+        }
 
-            // According to Android Studio, this method can throw a Security Exception if
-            // permissions are not yet granted. Rather than check the permissions, which is fiddly,
-            // we simply ignore the exception.
-            try {
-                watcher.client.requestLocationUpdates(
-                        watcher.locationRequest,
-                        watcher.locationCallback,
-                        null
-                );
-            } catch (SecurityException ignore) {}
+        // Starts recording every location the service receives to the
+        // session file, replacing the previous session.
+        void startSession() throws IOException {
+            synchronized (BackgroundGeolocationService.this) {
+                closeSession();
+                session = new SessionRecorder(getSessionFile());
+            }
+        }
 
-            // Promote the service to the foreground if necessary.
-            // Ideally we would only call 'startForeground' if the service is not already
-            // foregrounded. Unfortunately, 'getForegroundServiceType' was only introduced
-            // in API level 29 and seems to behave weirdly, as reported in #120. However,
-            // it appears that 'startForeground' is idempotent, so we just call it repeatedly
-            // each time a background watcher is added.
-            if (backgroundNotification != null) {
-                try {
-                    // This method has been known to fail due to weird
-                    // permission bugs, so we prevent any exceptions from
-                    // crashing the app. See issue #86.
-                    startForeground(NOTIFICATION_ID, backgroundNotification);
-                } catch (Exception exception) {
-                    Logger.error("Failed to foreground service", exception);
-                }
+        // Returns the number of fixes recorded and the size of the file.
+        JSObject stopSession() {
+            return closeSession();
+        }
+
+        // The session file, with everything recorded so far written out.
+        File getSessionFile() throws IOException {
+            SessionRecorder recorder = session;
+            if (recorder != null) {
+                recorder.flush();
             }
+            return new File(getFilesDir(), SESSION_FILE);
         }
 
-        void removeWatcher(String id) {
-            for (Watcher watcher : watchers) {
-                if (watcher.id.equals(id)) {
-                    watcher.client.removeLocationUpdates(watcher.locationCallback);
-                    watchers.remove(watcher);
-                    if (getNotification() == null) {
-                        stopForeground(true);
-                    }
-                    return;
+        // Opens a journal for replay, or the service's own journal if the
+        // directory is null. The service's journal is read through the open
+        // instance rather than opened again while it is being written.
+        ReplaySource.Track openJournalTrack(File directory) throws IOException {
+            File own = new File(getFilesDir(), JOURNAL_DIRECTORY);
+            if (directory == null || directory.getCanonicalFile().equals(own.getCanonicalFile())) {
+                if (journal == null) {
+                    throw new IOException("Journal unavailable.");
                 }
+                return new ReplaySource.JournalTrack(journal);
             }
+            return new ReplaySource.JournalTrack(directory);
         }
 
-        void onPermissionsGranted() {
-            // If permissions were granted while the app was in the background, for example in
-            // the Settings app, the watchers need restarting.
-            for (Watcher watcher : watchers) {
-                watcher.client.removeLocationUpdates(watcher.locationCallback);
-                watcher.client.requestLocationUpdates(
-                        watcher.locationRequest,
-                        watcher.locationCallback,
-                        null
-                );
+        JSObject getStats() {
+            return stats.toJSObject();
+        }
+
+        // Reads journaled locations into 'out', returning the next cursor.
+        long readJournal(long cursor, int limit, ArrayList<Location> out) throws IOException {
+            if (journal == null) {
+                throw new IOException("Journal unavailable.");
             }
+            return journal.read(cursor, limit, out);
+        }
+
+        void acknowledgeJournal(long cursor) throws IOException {
+            if (journal == null) {
+                throw new IOException("Journal unavailable.");
+            }
+            journal.acknowledge(cursor);
+        }
+
+        // Locations are delivered to the listener, rather than broadcast,
+        // while one is set.
+        void setListener(LocationDelivery.Listener listener) {
+            delivery.setListener(listener);
         }
 
         void stopService() {
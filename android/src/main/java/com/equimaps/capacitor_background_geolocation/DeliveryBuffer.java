@@ -0,0 +1,186 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.getcapacitor.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Applies back pressure between a watcher and its callback. The callback is
+// given a number of credits, and each delivery spends one until the app
+// acknowledges it, so no more than that many deliveries are ever waiting on
+// the bridge. Meanwhile locations wait in a bounded buffer, and once it is
+// full the overflow policy decides what gives: the oldest locations, the
+// newest, everything but the latest, or nothing, with the overflow spilled
+// to disk and read back in order. Either way, memory use stays flat however
+// far the app falls behind.
+//
+// Not thread safe. The service uses it on its own thread.
+class DeliveryBuffer {
+    enum Overflow {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        COALESCE,
+        SPILL
+    }
+
+    // Returns the policy with the given name, or DROP_OLDEST.
+    static Overflow overflowFromName(String name) {
+        if ("drop-newest".equals(name)) {
+            return Overflow.DROP_NEWEST;
+        } else if ("coalesce".equals(name)) {
+            return Overflow.COALESCE;
+        } else if ("spill".equals(name)) {
+            return Overflow.SPILL;
+        }
+        return Overflow.DROP_OLDEST;
+    }
+
+    private final int capacity;
+    private final Overflow overflow;
+    private final int credits;
+    private final int batchSize;
+    private final ArrayDeque<Location> buffer;
+    // Only set for the SPILL policy. Locations read back from the spill are
+    // acknowledged, and so deleted, straight away.
+    private final LocationJournal spill;
+    private final File spillDirectory;
+    private long spillCursor = 0;
+    private int inFlight = 0;
+
+    // Each delivery holds up to batchSize locations. The spill directory is
+    // only used by the SPILL policy, and is emptied first. If it cannot be
+    // used, the oldest locations are dropped instead.
+    DeliveryBuffer(
+            int capacity,
+            Overflow overflow,
+            int credits,
+            int batchSize,
+            File spillDirectory
+    ) {
+        this.capacity = Math.max(1, capacity);
+        this.overflow = overflow;
+        this.credits = Math.max(1, credits);
+        this.batchSize = Math.max(1, batchSize);
+        this.buffer = new ArrayDeque<Location>(Math.min(this.capacity, 1024));
+        this.spillDirectory = spillDirectory;
+        LocationJournal spill = null;
+        if (overflow == Overflow.SPILL) {
+            deleteDirectory(spillDirectory);
+            try {
+                spill = new LocationJournal(spillDirectory);
+                spillCursor = spill.getNext();
+            } catch (IOException exception) {
+                Logger.error("Failed to open spill, dropping oldest locations instead", exception);
+            }
+        }
+        this.spill = spill;
+    }
+
+    // Buffers locations, returning how many were dropped to make room.
+    int add(List<Location> locations) {
+        int dropped = 0;
+        for (Location location : locations) {
+            if (spill != null && (spillPending() || buffer.size() == capacity)) {
+                // Once anything is spilled, everything after it follows, so
+                // that order is kept.
+                try {
+                    spill.append(location);
+                } catch (IOException exception) {
+                    Logger.error("Failed to spill location", exception);
+                    dropped += 1;
+                }
+                continue;
+            }
+            if (buffer.size() == capacity) {
+                if (overflow == Overflow.DROP_NEWEST) {
+                    dropped += 1;
+                    continue;
+                }
+                if (overflow == Overflow.COALESCE) {
+                    dropped += buffer.size();
+                    buffer.clear();
+                } else {
+                    buffer.pollFirst();
+                    dropped += 1;
+                }
+            }
+            buffer.addLast(location);
+        }
+        return dropped;
+    }
+
+    // Returns the next delivery, if there is anything to deliver and a
+    // credit to spend on it, or null. The delivery is counted as in flight
+    // until it is acknowledged.
+    ArrayList<Location> poll() {
+        if (inFlight >= credits) {
+            return null;
+        }
+        if (buffer.isEmpty() && spillPending()) {
+            refill();
+        }
+        if (buffer.isEmpty()) {
+            return null;
+        }
+        ArrayList<Location> delivery = new ArrayList<Location>(Math.min(batchSize, buffer.size()));
+        while (delivery.size() < batchSize && !buffer.isEmpty()) {
+            delivery.add(buffer.pollFirst());
+        }
+        inFlight += 1;
+        return delivery;
+    }
+
+    // The number of locations held in memory, not counting any spilled.
+    int size() {
+        return buffer.size();
+    }
+
+    // Returns credits spent on the given number of deliveries.
+    void acknowledge(int count) {
+        inFlight = Math.max(0, inFlight - count);
+    }
+
+    void close() {
+        buffer.clear();
+        if (spill != null) {
+            spill.close();
+            deleteDirectory(spillDirectory);
+        }
+    }
+
+    private boolean spillPending() {
+        return spill != null && spill.getNext() > spillCursor;
+    }
+
+    private void refill() {
+        ArrayList<Location> read = new ArrayList<Location>(Math.min(capacity, 1024));
+        try {
+            spillCursor = spill.read(spillCursor, capacity, read);
+            spill.acknowledge(spillCursor);
+        } catch (IOException exception) {
+            Logger.error("Failed to read spilled locations", exception);
+            // Skip whatever could not be read rather than retrying forever.
+            spillCursor = spill.getNext();
+        }
+        buffer.addAll(read);
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,279 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Holds a set of circular and polygonal geofences in a hierarchy of latitude
+// and longitude grids, so that finding the fences containing a point only
+// tests the fences registered in that point's cells, however many fences
+// there are. The finest grid's cells are CELL_SIZE degrees, and each level's
+// cells are LEVEL_FACTOR times larger than the last. A fence is registered in
+// the finest level where it spans at most MAX_CELLS cells, so a lookup visits
+// one cell per level, whether the fences are the size of a building or of a
+// city. Only fences too large for even the coarsest level, spanning
+// continents, are kept aside in a list that is always tested. Fences crossing
+// the antimeridian are not supported.
+class GeofenceIndex {
+    // Roughly 1km at the equator.
+    static final double CELL_SIZE = 0.01;
+    static final int LEVEL_FACTOR = 8;
+    // The coarsest cells are roughly 570km at the equator.
+    static final int LEVELS = 4;
+    static final int MAX_CELLS = 64;
+    private static final double[] CELL_SIZES = new double[LEVELS];
+    static {
+        for (int level = 0; level < LEVELS; level++) {
+            CELL_SIZES[level] = CELL_SIZE * Math.pow(LEVEL_FACTOR, level);
+        }
+    }
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    static class Geofence {
+        final String id;
+        // Set for circles.
+        final double latitude;
+        final double longitude;
+        final double radius;
+        // Set for polygons, as alternating latitudes and longitudes.
+        final double[] polygon;
+        double minLatitude;
+        double maxLatitude;
+        double minLongitude;
+        double maxLongitude;
+        // The grid level the fence is registered in, or -1 if it is too
+        // large for any.
+        private int level = -1;
+
+        private Geofence(String id, double latitude, double longitude, double radius, double[] polygon) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.polygon = polygon;
+        }
+
+        static Geofence circle(String id, double latitude, double longitude, double radius) {
+            Geofence fence = new Geofence(id, latitude, longitude, radius, null);
+            double dLat = radius / METRES_PER_DEGREE;
+            double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+            fence.minLatitude = latitude - dLat;
+            fence.maxLatitude = latitude + dLat;
+            fence.minLongitude = longitude - dLon;
+            fence.maxLongitude = longitude + dLon;
+            return fence;
+        }
+
+        static Geofence polygon(String id, double[] polygon) {
+            if (polygon.length < 6 || polygon.length % 2 != 0) {
+                throw new IllegalArgumentException("A polygon needs at least three vertices.");
+            }
+            Geofence fence = new Geofence(id, 0, 0, 0, polygon);
+            fence.minLatitude = fence.maxLatitude = polygon[0];
+            fence.minLongitude = fence.maxLongitude = polygon[1];
+            for (int i = 2; i < polygon.length; i += 2) {
+                fence.minLatitude = Math.min(fence.minLatitude, polygon[i]);
+                fence.maxLatitude = Math.max(fence.maxLatitude, polygon[i]);
+                fence.minLongitude = Math.min(fence.minLongitude, polygon[i + 1]);
+                fence.maxLongitude = Math.max(fence.maxLongitude, polygon[i + 1]);
+            }
+            return fence;
+        }
+
+        boolean contains(double lat, double lon) {
+            if (lat < minLatitude || lat > maxLatitude || lon < minLongitude || lon > maxLongitude) {
+                return false;
+            }
+            if (polygon == null) {
+                return LocationMultiplexer.distanceBetween(latitude, longitude, lat, lon) <= radius;
+            }
+            // Even-odd ray casting.
+            boolean inside = false;
+            int n = polygon.length;
+            for (int i = 0, j = n - 2; i < n; j = i, i += 2) {
+                double latI = polygon[i];
+                double lonI = polygon[i + 1];
+                double latJ = polygon[j];
+                double lonJ = polygon[j + 1];
+                if (
+                        (latI > lat) != (latJ > lat) &&
+                        lon < (lonJ - lonI) * (lat - latI) / (latJ - latI) + lonI
+                ) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+
+    // Tracks which fences a single watcher is inside, turning successive
+    // locations into enter, exit and dwell transitions.
+    static class Tracker {
+        interface Listener {
+            void onTransition(String fenceId, String transition);
+        }
+
+        private final long dwellTime;
+        // Maps the fences the watcher is inside to the time it entered them,
+        // or to -1 once a dwell has been reported.
+        private final HashMap<String, Long> inside = new HashMap<String, Long>();
+        private final ArrayList<Geofence> found = new ArrayList<Geofence>();
+
+        // A zero dwell time disables dwell transitions.
+        Tracker(long dwellTime) {
+            this.dwellTime = dwellTime;
+        }
+
+        // The time is a monotonic timestamp in milliseconds.
+        void update(GeofenceIndex index, double lat, double lon, long time, Listener listener) {
+            found.clear();
+            index.find(lat, lon, found);
+            Iterator<Map.Entry<String, Long>> iterator = inside.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (!containsId(found, entry.getKey())) {
+                    iterator.remove();
+                    // Fences that were removed from the index are dropped
+                    // silently.
+                    if (index.has(entry.getKey())) {
+                        listener.onTransition(entry.getKey(), "exit");
+                    }
+                } else if (dwellTime > 0 && entry.getValue() >= 0 && time - entry.getValue() >= dwellTime) {
+                    entry.setValue(-1L);
+                    listener.onTransition(entry.getKey(), "dwell");
+                }
+            }
+            for (Geofence fence : found) {
+                if (!inside.containsKey(fence.id)) {
+                    inside.put(fence.id, time);
+                    listener.onTransition(fence.id, "enter");
+                }
+            }
+        }
+
+        private static boolean containsId(List<Geofence> fences, String id) {
+            for (Geofence fence : fences) {
+                if (fence.id.equals(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final HashMap<String, Geofence> fences = new HashMap<String, Geofence>();
+    private final HashMap<Long, ArrayList<Geofence>> cells = new HashMap<Long, ArrayList<Geofence>>();
+    private final ArrayList<Geofence> large = new ArrayList<Geofence>();
+
+    synchronized int size() {
+        return fences.size();
+    }
+
+    synchronized boolean has(String id) {
+        return fences.containsKey(id);
+    }
+
+    // Adds fences, replacing any existing fences with the same IDs.
+    synchronized void add(List<Geofence> added) {
+        for (Geofence fence : added) {
+            remove(fence.id);
+            fences.put(fence.id, fence);
+            fence.level = -1;
+            for (int level = 0; level < LEVELS; level++) {
+                long rows = row(fence.maxLatitude, level) - row(fence.minLatitude, level) + 1;
+                long columns = column(fence.maxLongitude, level) - column(fence.minLongitude, level) + 1;
+                if (rows * columns <= MAX_CELLS) {
+                    fence.level = level;
+                    break;
+                }
+            }
+            if (fence.level < 0) {
+                large.add(fence);
+                continue;
+            }
+            int level = fence.level;
+            for (int r = row(fence.minLatitude, level); r <= row(fence.maxLatitude, level); r++) {
+                for (int c = column(fence.minLongitude, level); c <= column(fence.maxLongitude, level); c++) {
+                    ArrayList<Geofence> cell = cells.get(key(level, r, c));
+                    if (cell == null) {
+                        cell = new ArrayList<Geofence>(2);
+                        cells.put(key(level, r, c), cell);
+                    }
+                    cell.add(fence);
+                }
+            }
+        }
+    }
+
+    synchronized void remove(String id) {
+        Geofence fence = fences.remove(id);
+        if (fence == null) {
+            return;
+        }
+        int level = fence.level;
+        if (level < 0) {
+            large.remove(fence);
+            return;
+        }
+        for (int r = row(fence.minLatitude, level); r <= row(fence.maxLatitude, level); r++) {
+            for (int c = column(fence.minLongitude, level); c <= column(fence.maxLongitude, level); c++) {
+                ArrayList<Geofence> cell = cells.get(key(level, r, c));
+                if (cell != null) {
+                    cell.remove(fence);
+                    if (cell.isEmpty()) {
+                        cells.remove(key(level, r, c));
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        fences.clear();
+        cells.clear();
+        large.clear();
+    }
+
+    // Replaces every fence with the given fences at once, so that a lookup
+    // never sees the index empty or half filled, and a fence that is kept
+    // is never reported as exited.
+    synchronized void replace(List<Geofence> replacements) {
+        clear();
+        add(replacements);
+    }
+
+    // Appends the fences containing the point to 'out'.
+    synchronized void find(double lat, double lon, List<Geofence> out) {
+        for (int level = 0; level < LEVELS; level++) {
+            ArrayList<Geofence> cell = cells.get(key(level, row(lat, level), column(lon, level)));
+            if (cell != null) {
+                for (Geofence fence : cell) {
+                    if (fence.contains(lat, lon)) {
+                        out.add(fence);
+                    }
+                }
+            }
+        }
+        for (Geofence fence : large) {
+            if (fence.contains(lat, lon)) {
+                out.add(fence);
+            }
+        }
+    }
+
+    private static int row(double lat, int level) {
+        return (int) Math.floor(lat / CELL_SIZES[level]);
+    }
+
+    private static int column(double lon, int level) {
+        return (int) Math.floor(lon / CELL_SIZES[level]);
+    }
+
+    // Rows and columns fit in 24 bits at every level, even for the bounds
+    // of circles near the poles.
+    private static long key(int level, int row, int column) {
+        return ((long) level << 48) | ((long) (row & 0xffffff) << 24) | (column & 0xffffff);
+    }
+}
@@ -0,0 +1,172 @@
+package com.equimaps.capacitor_background_geolocation;
+
+// Smooths a stream of locations with a constant velocity Kalman filter. The
+// state is a position and velocity along each of the east and north axes,
+// which are filtered independently, each with its own 2x2 covariance. Each
+// location's accuracy weighs its position, and its speed and bearing, when
+// known, are used as a measurement of velocity. Unexpected acceleration is
+// modelled as white noise.
+//
+// Positions are kept in metres relative to the current estimate, which is
+// moved after every update, so the flat earth approximation stays good over
+// any distance. Nothing is allocated per location.
+class KalmanFilter {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    // Used when a location does not report its own accuracies. Metres,
+    // metres per second and degrees respectively.
+    static final float DEFAULT_ACCURACY = 50f;
+    static final float DEFAULT_SPEED_ACCURACY = 1f;
+    static final float DEFAULT_BEARING_ACCURACY = 15f;
+    // The velocity variance of the first estimate, when its speed is unknown.
+    private static final double INITIAL_VELOCITY_VARIANCE = 100;
+
+    // The variance of the acceleration, in (m/s^2)^2.
+    private final double noise;
+    private boolean initialized = false;
+    private double latitude;
+    private double longitude;
+    private long time;
+    // Indexed by axis, east then north: position (relative to the current
+    // estimate, so zero between updates), velocity and the covariance
+    // [[a, b], [b, d]].
+    private final double[] p = new double[2];
+    private final double[] v = new double[2];
+    private final double[] a = new double[2];
+    private final double[] b = new double[2];
+    private final double[] d = new double[2];
+
+    // The acceleration is the standard deviation, in metres per second
+    // squared, of changes in velocity the filter should follow. Around 1 is
+    // suitable for walking, around 3 for driving.
+    KalmanFilter(double acceleration) {
+        this.noise = acceleration * acceleration;
+    }
+
+    // Feeds a location into the filter. The time is a monotonic timestamp in
+    // milliseconds. Accuracies are standard deviations, and any that are
+    // unknown, like the speed or bearing, are negative. Locations older than
+    // the current estimate are ignored.
+    void update(
+            double latitude,
+            double longitude,
+            float accuracy,
+            float speed,
+            float speedAccuracy,
+            float bearing,
+            float bearingAccuracy,
+            long time
+    ) {
+        double r = square(accuracy > 0 ? accuracy : DEFAULT_ACCURACY);
+        if (!initialized) {
+            initialized = true;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.time = time;
+            for (int axis = 0; axis < 2; axis++) {
+                p[axis] = 0;
+                v[axis] = 0;
+                a[axis] = r;
+                b[axis] = 0;
+                d[axis] = INITIAL_VELOCITY_VARIANCE;
+            }
+            measureVelocity(speed, speedAccuracy, bearing, bearingAccuracy);
+            return;
+        }
+        if (time < this.time) {
+            return;
+        }
+        double dt = (time - this.time) / 1000.0;
+        this.time = time;
+        for (int axis = 0; axis < 2; axis++) {
+            predict(axis, dt);
+        }
+        double scale = Math.max(1, METRES_PER_DEGREE * Math.cos(Math.toRadians(this.latitude)));
+        update(0, (longitude - this.longitude) * scale, r);
+        update(1, (latitude - this.latitude) * METRES_PER_DEGREE, r);
+        measureVelocity(speed, speedAccuracy, bearing, bearingAccuracy);
+        // Move the origin to the new estimate.
+        this.latitude += p[1] / METRES_PER_DEGREE;
+        this.longitude += p[0] / scale;
+        p[0] = 0;
+        p[1] = 0;
+    }
+
+    double getLatitude() {
+        return latitude;
+    }
+
+    double getLongitude() {
+        return longitude;
+    }
+
+    // The standard deviation of the position, in metres, along the less
+    // certain axis.
+    float getAccuracy() {
+        return (float) Math.sqrt(Math.max(a[0], a[1]));
+    }
+
+    // Metres per second.
+    float getSpeed() {
+        return (float) Math.hypot(v[0], v[1]);
+    }
+
+    // Degrees clockwise from north, in [0, 360).
+    float getBearing() {
+        double bearing = Math.toDegrees(Math.atan2(v[0], v[1]));
+        return (float) (bearing < 0 ? bearing + 360 : bearing);
+    }
+
+    private void measureVelocity(float speed, float speedAccuracy, float bearing, float bearingAccuracy) {
+        if (speed < 0 || (bearing < 0 && speed > 0)) {
+            return;
+        }
+        // The bearing's error is projected onto the axes as a sideways
+        // speed error, and lumped in with the speed's own error.
+        double theta = Math.toRadians(bearing < 0 ? 0 : bearing);
+        double sigmaTheta = Math.toRadians(bearingAccuracy > 0 ? bearingAccuracy : DEFAULT_BEARING_ACCURACY);
+        double r = (
+                square(speedAccuracy > 0 ? speedAccuracy : DEFAULT_SPEED_ACCURACY) +
+                square(speed * sigmaTheta)
+        );
+        updateVelocity(0, speed * Math.sin(theta), r);
+        updateVelocity(1, speed * Math.cos(theta), r);
+    }
+
+    private void predict(int axis, double dt) {
+        double dt2 = dt * dt;
+        p[axis] += v[axis] * dt;
+        a[axis] += 2 * dt * b[axis] + dt2 * d[axis] + noise * dt2 * dt2 / 4;
+        b[axis] += dt * d[axis] + noise * dt2 * dt / 2;
+        d[axis] += noise * dt2;
+    }
+
+    // Updates an axis with a measurement of its position.
+    private void update(int axis, double z, double r) {
+        double s = a[axis] + r;
+        double k0 = a[axis] / s;
+        double k1 = b[axis] / s;
+        double y = z - p[axis];
+        p[axis] += k0 * y;
+        v[axis] += k1 * y;
+        d[axis] -= k1 * b[axis];
+        a[axis] *= 1 - k0;
+        b[axis] *= 1 - k0;
+    }
+
+    // Updates an axis with a measurement of its velocity.
+    private void updateVelocity(int axis, double z, double r) {
+        double s = d[axis] + r;
+        double k0 = b[axis] / s;
+        double k1 = d[axis] / s;
+        double y = z - v[axis];
+        p[axis] += k0 * y;
+        v[axis] += k1 * y;
+        a[axis] -= k0 * b[axis];
+        b[axis] *= 1 - k1;
+        d[axis] *= 1 - k1;
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+}
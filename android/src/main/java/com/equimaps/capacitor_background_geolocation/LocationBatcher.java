@@ -0,0 +1,64 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+
+// Accumulates a watcher's locations, releasing them as a batch once the batch
+// is full or once the oldest pending location has waited long enough. A batch
+// size of 1 releases every location immediately.
+class LocationBatcher<T> {
+    private final int size;
+    private final long maxLatency;
+    private ArrayList<T> pending;
+    private long oldest;
+
+    LocationBatcher(int size, long maxLatency) {
+        this.size = Math.max(1, size);
+        this.maxLatency = Math.max(0, maxLatency);
+        this.pending = new ArrayList<T>(this.size);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    long getMaxLatency() {
+        return maxLatency;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    // Adds an item, returning the completed batch (in arrival order) if it is
+    // now due, or null otherwise. The 'now' argument is a monotonic timestamp
+    // in milliseconds.
+    ArrayList<T> add(T item, long now) {
+        if (pending.isEmpty()) {
+            oldest = now;
+        }
+        pending.add(item);
+        if (pending.size() >= size || now - oldest >= maxLatency) {
+            return flush();
+        }
+        return null;
+    }
+
+    // Returns the number of milliseconds until the pending batch must be
+    // flushed, or -1 if nothing is pending.
+    long delayUntilDue(long now) {
+        if (pending.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, oldest + maxLatency - now);
+    }
+
+    // Releases whatever is pending, returning null if there is nothing.
+    ArrayList<T> flush() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        ArrayList<T> batch = pending;
+        pending = new ArrayList<T>(size);
+        return batch;
+    }
+}
@@ -0,0 +1,128 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Remembers the last good location, in memory and in SharedPreferences, so
+// that it is available instantly, even before the service has started or
+// after the app was restarted. Writes are throttled, since locations can
+// arrive many times a second. A single instance is shared by the plugin and
+// the service.
+class LocationCache {
+    private static final long PERSIST_INTERVAL = 15000;
+    // A less accurate location does not replace a more accurate one until
+    // the latter is this old.
+    private static final long ACCURACY_WINDOW = 60000;
+    private static final String KEY = "lastLocation";
+    // A cached location older than this may have been overtaken by one that
+    // Play Services received for another app.
+    static final long FRESH_AGE = 60000;
+
+    private static LocationCache instance = null;
+
+    private final SharedPreferences preferences;
+    private Location location = null;
+    private boolean loaded = false;
+    private long persistedAt = 0;
+    private boolean dirty = false;
+
+    // Use getInstance, other than in tests.
+    LocationCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    static synchronized LocationCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocationCache(context.getApplicationContext().getSharedPreferences(
+                    BackgroundGeolocationService.class.getPackage().getName(),
+                    Context.MODE_PRIVATE
+            ));
+        }
+        return instance;
+    }
+
+    // The age in milliseconds of a location, by the wall clock, because
+    // elapsed realtime does not survive a reboot.
+    static long getAge(Location location) {
+        return Math.max(0, System.currentTimeMillis() - location.getTime());
+    }
+
+    synchronized void put(Location location) {
+        load();
+        if (
+                this.location != null &&
+                this.location.hasAccuracy() &&
+                location.hasAccuracy() &&
+                location.getAccuracy() > 2 * this.location.getAccuracy() &&
+                location.getTime() - this.location.getTime() < ACCURACY_WINDOW
+        ) {
+            return;
+        }
+        this.location = location;
+        dirty = true;
+        long now = System.currentTimeMillis();
+        if (now - persistedAt >= PERSIST_INTERVAL) {
+            persist(now);
+        }
+    }
+
+    // Returns the cached location, or null if there is none.
+    synchronized Location get() {
+        load();
+        return location;
+    }
+
+    // Persists the cached location if it has not been already.
+    synchronized void flush() {
+        if (dirty) {
+            persist(System.currentTimeMillis());
+        }
+    }
+
+    private void persist(long now) {
+        persistedAt = now;
+        dirty = false;
+        preferences.edit().putString(KEY, LocationEncoder.OBJECT.encode(location).toString()).apply();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        String json = preferences.getString(KEY, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            location = decode(new JSONObject(json));
+        } catch (JSONException exception) {
+            preferences.edit().remove(KEY).apply();
+        }
+    }
+
+    // Reverses LocationEncoder.OBJECT, as far as persisting needs.
+    private static Location decode(JSONObject obj) throws JSONException {
+        Location location = new Location("cache");
+        location.setLatitude(obj.getDouble("latitude"));
+        location.setLongitude(obj.getDouble("longitude"));
+        location.setTime(obj.getLong("time"));
+        if (!obj.isNull("accuracy")) {
+            location.setAccuracy((float) obj.getDouble("accuracy"));
+        }
+        if (!obj.isNull("altitude")) {
+            location.setAltitude(obj.getDouble("altitude"));
+        }
+        if (!obj.isNull("speed")) {
+            location.setSpeed((float) obj.getDouble("speed"));
+        }
+        if (!obj.isNull("bearing")) {
+            location.setBearing((float) obj.getDouble("bearing"));
+        }
+        return location;
+    }
+}
@@ -0,0 +1,130 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// Hands locations and events from the service to the plugin on a dedicated
+// thread. The plugin and the service share a process, so there is no need to
+// pay for an Intent per location, or for LocalBroadcastManager's global lock
+// and main thread dispatch. Producers never block: messages are queued on a
+// lock-free queue and the delivery thread is woken to drain it.
+class LocationDelivery implements Runnable {
+    interface Listener {
+        // Returns false if the locations could not be delivered, for example
+        // because the watcher's callback is gone.
+        boolean onLocations(String id, ArrayList<Location> locations);
+        // Resolves a watcher's callback with an arbitrary result.
+        void onResult(String id, JSObject data);
+        void onEvent(String event, JSObject data);
+    }
+
+    // Either a watcher's locations, a watcher's result, or an event.
+    private static class Message {
+        final String id;
+        final ArrayList<Location> locations;
+        final String event;
+        final JSObject data;
+        final long queued = System.nanoTime();
+
+        Message(String id, ArrayList<Location> locations, String event, JSObject data) {
+            this.id = id;
+            this.locations = locations;
+            this.event = event;
+            this.data = data;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<Message>();
+    private final Thread thread = new Thread(this, "BackgroundGeolocationDelivery");
+    private final PipelineStats stats;
+    private volatile Listener listener = null;
+    private volatile boolean running = false;
+
+    LocationDelivery(PipelineStats stats) {
+        this.stats = stats;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    boolean hasListener() {
+        return listener != null;
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    void offer(String id, ArrayList<Location> locations) {
+        queue.offer(new Message(id, locations, null, null));
+        LockSupport.unpark(thread);
+    }
+
+    void offerResult(String id, JSObject data) {
+        queue.offer(new Message(id, null, null, data));
+        LockSupport.unpark(thread);
+    }
+
+    void offerEvent(String event, JSObject data) {
+        queue.offer(new Message(null, null, event, data));
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Message message = queue.poll();
+            if (message == null) {
+                // Spurious wakeups are harmless, the queue is simply polled
+                // again.
+                LockSupport.park(this);
+                continue;
+            }
+            Listener current = listener;
+            if (current == null) {
+                Logger.debug("No listener, dropping message");
+                if (message.locations != null) {
+                    count(message, false);
+                }
+                continue;
+            }
+            try {
+                if (message.event != null) {
+                    current.onEvent(message.event, message.data);
+                } else if (message.locations != null) {
+                    count(message, current.onLocations(message.id, message.locations));
+                } else {
+                    current.onResult(message.id, message.data);
+                }
+            } catch (Exception exception) {
+                Logger.error("Failed to deliver message", exception);
+            }
+        }
+    }
+
+    private void count(Message message, boolean delivered) {
+        PipelineStats.Counters counters = stats.getWatcher(message.id);
+        if (counters == null) {
+            return;
+        }
+        if (delivered) {
+            counters.delivered.addAndGet(message.locations.size());
+            stats.dispatchLatency.record(System.nanoTime() - message.queued);
+        } else {
+            counters.dropped.addAndGet(message.locations.size());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+// An append-only record of locations, kept on disk so that they outlive the
+// WebView and the process. Each location is stored as a fixed-size binary
+// record and identified by a sequence number, which doubles as the cursor
+// used to read the journal back. Records are spread across segment files that
+// are rotated when full and deleted once every record they hold has been
+// acknowledged.
+class LocationJournal {
+    static final int RECORD_SIZE = 52;
+    private static final int RECORDS_PER_SEGMENT = 16384;
+    // Roughly a million records, or 50MB. Beyond this the oldest segment is
+    // discarded, acknowledged or not.
+    private static final int MAX_SEGMENTS = 64;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "acknowledged";
+
+    private static final int HAS_ACCURACY = 1;
+    private static final int HAS_ALTITUDE = 1 << 1;
+    private static final int HAS_VERTICAL_ACCURACY = 1 << 2;
+    private static final int HAS_SPEED = 1 << 3;
+    private static final int HAS_BEARING = 1 << 4;
+    private static final int SIMULATED = 1 << 5;
+
+    private final File directory;
+    // Maps the sequence number of each segment's first record to its file.
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel head = null;
+    private long headStart;
+    private long next;
+    private long acknowledged;
+
+    LocationJournal(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(
+                                Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+                                file
+                        );
+                    } catch (NumberFormatException ignore) {}
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            next = 0;
+        } else {
+            // A partially written trailing record, from a crash mid-append,
+            // is ignored and later overwritten.
+            next = segments.lastKey() + segments.lastEntry().getValue().length() / RECORD_SIZE;
+        }
+        // If every segment has been acknowledged and deleted, numbering
+        // resumes from the cursor so that existing cursors remain valid.
+        acknowledged = readCursor();
+        next = Math.max(next, acknowledged);
+    }
+
+    // The sequence number that will be given to the next appended record.
+    synchronized long getNext() {
+        return next;
+    }
+
+    // The sequence number of the oldest record that has not been acknowledged.
+    synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    synchronized void append(Location location) throws IOException {
+        if (head == null || next - headStart >= RECORDS_PER_SEGMENT) {
+            rotate();
+        }
+        int flags = 0;
+        if (location.hasAccuracy()) flags |= HAS_ACCURACY;
+        if (location.hasAltitude()) flags |= HAS_ALTITUDE;
+        if (Build.VERSION.SDK_INT >= 26 && location.hasVerticalAccuracy()) flags |= HAS_VERTICAL_ACCURACY;
+        if (location.hasSpeed()) flags |= HAS_SPEED;
+        if (location.hasBearing()) flags |= HAS_BEARING;
+        if (location.isFromMockProvider()) flags |= SIMULATED;
+        record.clear();
+        record.putLong(location.getTime());
+        record.putDouble(location.getLatitude());
+        record.putDouble(location.getLongitude());
+        record.putDouble(location.getAltitude());
+        record.putFloat(location.getAccuracy());
+        record.putFloat(
+                (flags & HAS_VERTICAL_ACCURACY) != 0 ? location.getVerticalAccuracyMeters() : 0f
+        );
+        record.putFloat(location.getSpeed());
+        record.putFloat(location.getBearing());
+        record.putInt(flags);
+        record.flip();
+        long position = (next - headStart) * RECORD_SIZE;
+        while (record.hasRemaining()) {
+            position += head.write(record, position);
+        }
+        next += 1;
+    }
+
+    // Reads up to 'limit' records, starting at the given cursor or the oldest
+    // unacknowledged record, whichever is later. The records are appended to
+    // 'out' and the cursor following the last record read is returned.
+    synchronized long read(long cursor, int limit, ArrayList<Location> out) throws IOException {
+        long seq = Math.max(cursor, acknowledged);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * Math.min(limit, RECORDS_PER_SEGMENT));
+        while (limit > 0 && seq < next) {
+            Long start = segments.floorKey(seq);
+            if (start == null) {
+                // The records have been discarded, skip ahead.
+                seq = segments.isEmpty() ? next : segments.firstKey();
+                continue;
+            }
+            long end = Math.min(start + RECORDS_PER_SEGMENT, next);
+            int count = (int) Math.min(limit, end - seq);
+            buffer.clear();
+            buffer.limit(count * RECORD_SIZE);
+            RandomAccessFile file = new RandomAccessFile(segments.get(start), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                long position = (seq - start) * RECORD_SIZE;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        break;
+                    }
+                    position += read;
+                }
+            } finally {
+                file.close();
+            }
+            buffer.flip();
+            boolean truncated = buffer.remaining() < count * RECORD_SIZE;
+            while (buffer.remaining() >= RECORD_SIZE) {
+                out.add(decode(buffer));
+                seq += 1;
+                limit -= 1;
+            }
+            if (truncated) {
+                // The segment was shorter than expected, skip to the next.
+                seq = end;
+            }
+        }
+        return seq;
+    }
+
+    // Acknowledges every record before the cursor, deleting segments that
+    // no longer hold any unacknowledged records.
+    synchronized void acknowledge(long cursor) throws IOException {
+        if (cursor <= acknowledged) {
+            return;
+        }
+        acknowledged = Math.min(cursor, next);
+        while (!segments.isEmpty()) {
+            long start = segments.firstKey();
+            if (start + RECORDS_PER_SEGMENT > acknowledged || start == headStart && head != null) {
+                break;
+            }
+            delete(start);
+        }
+        writeCursor(acknowledged);
+    }
+
+    synchronized void close() {
+        if (head != null) {
+            try {
+                head.close();
+            } catch (IOException ignore) {}
+            head = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        close();
+        // Resume a partially filled segment left over from a previous process.
+        if (!segments.isEmpty() && next - segments.lastKey() < RECORDS_PER_SEGMENT) {
+            headStart = segments.lastKey();
+        } else {
+            headStart = next;
+            segments.put(headStart, new File(directory, String.format("%020d", headStart) + SEGMENT_SUFFIX));
+        }
+        head = new RandomAccessFile(segments.get(headStart), "rw").getChannel();
+        while (segments.size() > MAX_SEGMENTS) {
+            long oldest = segments.firstKey();
+            delete(oldest);
+            acknowledged = Math.max(acknowledged, segments.firstKey());
+        }
+    }
+
+    private void delete(long start) {
+        File file = segments.remove(start);
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private Location decode(ByteBuffer buffer) {
+        Location location = new Location("journal");
+        location.setTime(buffer.getLong());
+        location.setLatitude(buffer.getDouble());
+        location.setLongitude(buffer.getDouble());
+        double altitude = buffer.getDouble();
+        float accuracy = buffer.getFloat();
+        float verticalAccuracy = buffer.getFloat();
+        float speed = buffer.getFloat();
+        float bearing = buffer.getFloat();
+        int flags = buffer.getInt();
+        if ((flags & HAS_ACCURACY) != 0) location.setAccuracy(accuracy);
+        if ((flags & HAS_ALTITUDE) != 0) location.setAltitude(altitude);
+        if ((flags & HAS_SPEED) != 0) location.setSpeed(speed);
+        if ((flags & HAS_BEARING) != 0) location.setBearing(bearing);
+        if (Build.VERSION.SDK_INT >= 26 && (flags & HAS_VERTICAL_ACCURACY) != 0) {
+            location.setVerticalAccuracyMeters(verticalAccuracy);
+        }
+        // Prior to API level 31 there is no public way to mark a location as
+        // simulated, so the flag is lost on those devices.
+        if (Build.VERSION.SDK_INT >= 31 && (flags & SIMULATED) != 0) {
+            location.setMock(true);
+        }
+        return location;
+    }
+
+    private long readCursor() {
+        File file = new File(directory, CURSOR_FILE);
+        if (!file.exists()) {
+            return segments.isEmpty() ? 0 : segments.firstKey();
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.readLong();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException exception) {
+            return segments.isEmpty() ? 0 : segments.firstKey();
+        }
+    }
+
+    private void writeCursor(long cursor) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+        try {
+            raf.seek(0);
+            raf.writeLong(cursor);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// Shares a single location subscription between any number of watchers. The
+// subscription is kept at the shortest intervals, strictest priority and
+// smallest displacement that any watcher asks for, and each location it
+// produces is fanned out to the watchers, which apply their own interval and
+// distance filter in software.
+class LocationMultiplexer {
+    // Where locations come from, normally the fused location provider.
+    interface Source {
+        // Requests updates with the given parameters, replacing any previous
+        // request. A lower priority value is a stricter priority, matching
+        // LocationRequest's constants.
+        void requestUpdates(
+                long interval,
+                long fastestInterval,
+                int priority,
+                long maxWaitTime,
+                float smallestDisplacement
+        );
+        void removeUpdates();
+    }
+
+    abstract static class Subscription {
+        long interval;
+        // The fastest rate at which locations requested by other apps, or
+        // other watchers, are accepted by the provider.
+        long fastestInterval;
+        int priority;
+        long maxWaitTime;
+        float distanceFilter;
+        // Unlike the interval, never undercut.
+        long minInterval;
+        // Where else this subscription's locations go, such as a journal, as
+        // bits chosen by the owner. See dispatch.
+        int sinks;
+        private Location last = null;
+
+        // Receives the locations that passed this subscription's filters,
+        // oldest first. Never called with an empty list.
+        abstract void onLocations(ArrayList<Location> locations);
+
+        // Called with the number of locations this subscription's filters
+        // rejected, if any.
+        void onRejected(int count) {}
+
+        // Locations arrive on a schedule set by the strictest subscription,
+        // with some jitter, so a little slack is allowed before a location is
+        // considered too early. None is allowed for the minimum interval.
+        boolean accepts(Location location) {
+            if (last == null) {
+                return true;
+            }
+            long elapsed = (
+                    location.getElapsedRealtimeNanos() - last.getElapsedRealtimeNanos()
+            ) / 1000000;
+            if (elapsed < interval - interval / 10 || elapsed < minInterval) {
+                return false;
+            }
+            return distanceFilter <= 0 || distanceBetween(
+                    last.getLatitude(),
+                    last.getLongitude(),
+                    location.getLatitude(),
+                    location.getLongitude()
+            ) >= distanceFilter;
+        }
+    }
+
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private Source source;
+    private final LinkedHashSet<Subscription> subscriptions = new LinkedHashSet<Subscription>();
+    // A copy of the subscriptions, replaced whenever they change, so that
+    // locations are dispatched without holding the lock. Otherwise adding or
+    // removing a watcher would wait for every watcher's pipeline to run.
+    private Subscription[] dispatching = new Subscription[0];
+    private long interval;
+    private long fastestInterval;
+    private int priority;
+    private long maxWaitTime;
+    private float smallestDisplacement;
+
+    LocationMultiplexer(Source source) {
+        this.source = source;
+    }
+
+    // Switches to a different source, moving the subscription over to it.
+    synchronized void setSource(Source newSource) {
+        if (!subscriptions.isEmpty()) {
+            source.removeUpdates();
+        }
+        source = newSource;
+        if (!subscriptions.isEmpty()) {
+            request();
+        }
+    }
+
+    synchronized void add(Subscription subscription) {
+        if (!subscriptions.add(subscription)) {
+            return;
+        }
+        dispatching = subscriptions.toArray(new Subscription[0]);
+        if (subscriptions.size() == 1) {
+            interval = subscription.interval;
+            fastestInterval = subscription.fastestInterval;
+            priority = subscription.priority;
+            maxWaitTime = subscription.maxWaitTime;
+            smallestDisplacement = subscription.distanceFilter;
+        } else if (
+                subscription.interval < interval ||
+                subscription.fastestInterval < fastestInterval ||
+                subscription.priority < priority ||
+                subscription.maxWaitTime < maxWaitTime ||
+                subscription.distanceFilter < smallestDisplacement
+        ) {
+            interval = Math.min(interval, subscription.interval);
+            fastestInterval = Math.min(fastestInterval, subscription.fastestInterval);
+            priority = Math.min(priority, subscription.priority);
+            maxWaitTime = Math.min(maxWaitTime, subscription.maxWaitTime);
+            smallestDisplacement = Math.min(smallestDisplacement, subscription.distanceFilter);
+        } else {
+            // The existing request already satisfies the new subscription.
+            return;
+        }
+        request();
+    }
+
+    synchronized void remove(Subscription subscription) {
+        if (!subscriptions.remove(subscription)) {
+            return;
+        }
+        dispatching = subscriptions.toArray(new Subscription[0]);
+        if (subscriptions.isEmpty()) {
+            source.removeUpdates();
+            return;
+        }
+        // Only a subscription that was constraining the request can loosen it.
+        if (
+                subscription.interval == interval ||
+                subscription.fastestInterval == fastestInterval ||
+                subscription.priority == priority ||
+                subscription.maxWaitTime == maxWaitTime ||
+                subscription.distanceFilter == smallestDisplacement
+        ) {
+            update();
+        }
+    }
+
+    synchronized void clear() {
+        if (!subscriptions.isEmpty()) {
+            subscriptions.clear();
+            dispatching = new Subscription[0];
+            source.removeUpdates();
+        }
+    }
+
+    // Recomputes the request after a subscription's parameters changed.
+    synchronized void update() {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        long newInterval = Long.MAX_VALUE;
+        long newFastestInterval = Long.MAX_VALUE;
+        int newPriority = Integer.MAX_VALUE;
+        long newMaxWaitTime = Long.MAX_VALUE;
+        float newSmallestDisplacement = Float.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            newInterval = Math.min(newInterval, subscription.interval);
+            newFastestInterval = Math.min(newFastestInterval, subscription.fastestInterval);
+            newPriority = Math.min(newPriority, subscription.priority);
+            newMaxWaitTime = Math.min(newMaxWaitTime, subscription.maxWaitTime);
+            newSmallestDisplacement = Math.min(newSmallestDisplacement, subscription.distanceFilter);
+        }
+        if (
+                newInterval != interval ||
+                newFastestInterval != fastestInterval ||
+                newPriority != priority ||
+                newMaxWaitTime != maxWaitTime ||
+                newSmallestDisplacement != smallestDisplacement
+        ) {
+            interval = newInterval;
+            fastestInterval = newFastestInterval;
+            priority = newPriority;
+            maxWaitTime = newMaxWaitTime;
+            smallestDisplacement = newSmallestDisplacement;
+            request();
+        }
+    }
+
+    // Re-requests updates from scratch, for example once permissions have
+    // been granted.
+    synchronized void restart() {
+        if (!subscriptions.isEmpty()) {
+            source.removeUpdates();
+            request();
+        }
+    }
+
+    // Fans locations out to every subscription that accepts them. Only
+    // called on one thread at a time. A subscription removed meanwhile may
+    // still receive these locations.
+    //
+    // Returns, for each location, the sinks of every subscription that
+    // accepted it, or null if no subscription has any. Subscriptions share
+    // locations, so this lets the owner write each location to each sink
+    // once, and in order, whichever subscriptions accepted it.
+    int[] dispatch(List<Location> locations) {
+        Subscription[] current;
+        synchronized (this) {
+            current = dispatching;
+        }
+        int[] sinks = null;
+        for (Subscription subscription : current) {
+            ArrayList<Location> accepted = null;
+            int rejected = 0;
+            int index = 0;
+            for (Location location : locations) {
+                if (!subscription.accepts(location)) {
+                    rejected += 1;
+                } else {
+                    subscription.last = location;
+                    if (accepted == null) {
+                        accepted = new ArrayList<Location>(locations.size());
+                    }
+                    accepted.add(location);
+                    if (subscription.sinks != 0) {
+                        if (sinks == null) {
+                            sinks = new int[locations.size()];
+                        }
+                        sinks[index] |= subscription.sinks;
+                    }
+                }
+                index += 1;
+            }
+            if (rejected > 0) {
+                subscription.onRejected(rejected);
+            }
+            if (accepted != null) {
+                subscription.onLocations(accepted);
+            }
+        }
+        return sinks;
+    }
+
+    private void request() {
+        // A max wait time shorter than the interval would disable batching.
+        source.requestUpdates(
+                interval,
+                fastestInterval,
+                priority,
+                Math.max(interval, maxWaitTime),
+                smallestDisplacement
+        );
+    }
+
+    // The great-circle distance in metres between two points.
+    static double distanceBetween(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = (
+                Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                Math.sin(dLon / 2) * Math.sin(dLon / 2)
+        );
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,249 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.getcapacitor.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Uploads locations to a server from the service, so that uploads continue
+// while the WebView is throttled or gone. Locations are queued in their own
+// journal, so they survive restarts, and are POSTed in order as gzipped JSON
+// batches of the form {"locations": [...]}. A batch is only removed from the
+// queue once the server accepts it, so every location is delivered at least
+// once. Failures are retried with exponential backoff and full jitter.
+class LocationUploader {
+    static class Config {
+        String url;
+        Map<String, String> headers;
+        int batchSize;
+        long maxLatency;
+
+        // Parses the options passed to configureUpload. A URL that could
+        // never be posted to is rejected here, rather than retried forever.
+        static Config from(JSONObject options) throws JSONException {
+            Config config = new Config();
+            config.url = options.getString("url");
+            try {
+                String protocol = new URL(config.url).getProtocol();
+                if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                    throw new JSONException("Upload URL must be http or https: " + config.url);
+                }
+            } catch (MalformedURLException exception) {
+                throw new JSONException("Malformed upload URL: " + config.url);
+            }
+            config.headers = new HashMap<String, String>();
+            JSONObject headers = options.optJSONObject("headers");
+            if (headers != null) {
+                Iterator<String> names = headers.keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    config.headers.put(name, headers.getString(name));
+                }
+            }
+            config.batchSize = Math.max(1, options.optInt("batchSize", 100));
+            config.maxLatency = Math.max(0, options.optLong("maxLatency", 60000));
+            return config;
+        }
+    }
+
+    static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 300000;
+    private static final int TIMEOUT = 30000;
+
+    private final LocationJournal queue;
+    private final long minBackoff;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private volatile Config config = null;
+    private ScheduledFuture<?> scheduled = null;
+    private long scheduledAt = Long.MAX_VALUE;
+    private int failures = 0;
+
+    LocationUploader(LocationJournal queue) {
+        this(queue, MIN_BACKOFF);
+    }
+
+    LocationUploader(LocationJournal queue, long minBackoff) {
+        this.queue = queue;
+        this.minBackoff = minBackoff;
+    }
+
+    // Starts uploading with the given configuration, or stops if it is null.
+    // Queued locations are kept either way.
+    synchronized void configure(Config config) {
+        this.config = config;
+        failures = 0;
+        cancel();
+        if (config != null && pending() > 0) {
+            schedule(0);
+        }
+    }
+
+    void append(Location location) {
+        try {
+            queue.append(location);
+        } catch (IOException exception) {
+            Logger.error("Failed to queue location for upload", exception);
+            return;
+        }
+        Config current = config;
+        if (current == null) {
+            return;
+        }
+        synchronized (this) {
+            // While backing off, the retry is left alone.
+            if (failures > 0) {
+                return;
+            }
+            schedule(pending() >= current.batchSize ? 0 : current.maxLatency);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private long pending() {
+        return queue.getNext() - queue.getAcknowledged();
+    }
+
+    private void cancel() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+            scheduledAt = Long.MAX_VALUE;
+        }
+    }
+
+    // Schedules an upload after the delay, unless one is already due sooner.
+    private void schedule(long delay) {
+        long at = System.currentTimeMillis() + delay;
+        if (scheduled != null && !scheduled.isDone() && scheduledAt <= at) {
+            return;
+        }
+        cancel();
+        scheduledAt = at;
+        scheduled = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                upload();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void upload() {
+        Config current = config;
+        synchronized (this) {
+            scheduled = null;
+            scheduledAt = Long.MAX_VALUE;
+        }
+        if (current == null) {
+            return;
+        }
+        ArrayList<Location> batch = new ArrayList<Location>(current.batchSize);
+        long cursor;
+        try {
+            cursor = queue.read(0, current.batchSize, batch);
+        } catch (IOException exception) {
+            Logger.error("Failed to read upload queue", exception);
+            retry();
+            return;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        int status;
+        try {
+            status = post(current, LocationEncoder.OBJECT.encode(batch).toString());
+        } catch (IOException exception) {
+            Logger.error("Failed to upload locations", exception);
+            retry();
+            return;
+        }
+        if (status >= 300 && status < 500 && status != 408 && status != 429) {
+            // Retrying a request the server rejects outright, or redirects,
+            // would block the queue forever, so the batch is discarded.
+            Logger.warn("Upload rejected with status " + status + ", discarding batch");
+        } else if (status < 200 || status >= 300) {
+            Logger.debug("Upload failed with status " + status);
+            retry();
+            return;
+        }
+        try {
+            queue.acknowledge(cursor);
+        } catch (IOException exception) {
+            Logger.error("Failed to acknowledge upload", exception);
+        }
+        synchronized (this) {
+            failures = 0;
+            if (pending() >= current.batchSize) {
+                schedule(0);
+            } else if (pending() > 0) {
+                schedule(current.maxLatency);
+            }
+        }
+    }
+
+    private synchronized void retry() {
+        failures += 1;
+        long ceiling = Math.min(MAX_BACKOFF, minBackoff << Math.min(failures - 1, 20));
+        schedule((long) (random.nextDouble() * ceiling));
+    }
+
+    private static int post(Config config, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(config.url).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            // Followed redirects turn the POST into a body-less GET, whose
+            // success would wrongly acknowledge the batch.
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            if (config.headers != null) {
+                for (Map.Entry<String, String> header : config.headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            OutputStream out = new GZIPOutputStream(connection.getOutputStream());
+            try {
+                out.write(body.getBytes(Charset.forName("UTF-8")));
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            // Drain the response so that the connection can be reused.
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) >= 0) {}
+                in.close();
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
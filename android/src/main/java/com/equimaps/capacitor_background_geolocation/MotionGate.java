@@ -0,0 +1,78 @@
+package com.equimaps.capacitor_background_geolocation;
+
+// Decides whether the device is stationary, so that watchers with motion
+// gating can stop receiving locations, and let the GPS sleep, until it moves
+// again. Activity recognition transitions are trusted outright. Without them,
+// the device is judged stationary once its locations have stayed put for the
+// stationary timeout, as in AdaptiveSampler.
+//
+// Once locations stop, only activity recognition or the significant motion
+// sensor can notice movement, so the gate never closes unless one of them is
+// available.
+class MotionGate {
+    enum State {
+        MOVING,
+        STATIONARY
+    }
+
+    static final long STATIONARY_TIMEOUT = 180000;
+
+    private State state = State.MOVING;
+    private AdaptiveSampler sampler = new AdaptiveSampler(STATIONARY_TIMEOUT);
+    private boolean activityRecognition = false;
+    private boolean significantMotion = false;
+
+    State getState() {
+        return state;
+    }
+
+    void setActivityRecognition(boolean available) {
+        activityRecognition = available;
+    }
+
+    void setSignificantMotion(boolean available) {
+        significantMotion = available;
+    }
+
+    boolean canWake() {
+        return activityRecognition || significantMotion;
+    }
+
+    // The following methods return the new state if it changed, or null
+    // otherwise.
+
+    // Called with activity recognition's transitions into and out of the
+    // "still" activity.
+    State onActivity(boolean still) {
+        return become(still ? State.STATIONARY : State.MOVING);
+    }
+
+    State onSignificantMotion() {
+        return become(State.MOVING);
+    }
+
+    // The time is a monotonic timestamp in milliseconds. A negative speed
+    // means the speed is unknown.
+    State onLocation(double latitude, double longitude, float accuracy, float speed, long time) {
+        AdaptiveSampler.State change = sampler.update(latitude, longitude, accuracy, speed, time);
+        if (change == AdaptiveSampler.State.STATIONARY) {
+            return become(State.STATIONARY);
+        }
+        if (change == AdaptiveSampler.State.MOVING) {
+            return become(State.MOVING);
+        }
+        return null;
+    }
+
+    private State become(State next) {
+        if (next == state || (next == State.STATIONARY && !canWake())) {
+            return null;
+        }
+        state = next;
+        if (state == State.MOVING) {
+            // Start judging stillness afresh from the next location.
+            sampler = new AdaptiveSampler(STATIONARY_TIMEOUT);
+        }
+        return state;
+    }
+}
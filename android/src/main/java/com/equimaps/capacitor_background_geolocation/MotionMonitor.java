@@ -0,0 +1,200 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.Handler;
+
+import com.getcapacitor.Logger;
+import com.google.android.gms.location.ActivityRecognition;
+import com.google.android.gms.location.ActivityRecognitionClient;
+import com.google.android.gms.location.ActivityTransition;
+import com.google.android.gms.location.ActivityTransitionEvent;
+import com.google.android.gms.location.ActivityTransitionRequest;
+import com.google.android.gms.location.ActivityTransitionResult;
+import com.google.android.gms.location.DetectedActivity;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+
+import java.util.ArrayList;
+
+// Feeds a MotionGate from the device's low power motion sources: activity
+// recognition transitions into and out of "still", and the significant
+// motion sensor. Activity recognition needs the ACTIVITY_RECOGNITION
+// permission, which the plugin does not request. Without it, the gate falls
+// back to the significant motion sensor, which is only armed while the
+// device is stationary. Everything, including the listener, runs on the
+// given handler's thread.
+class MotionMonitor {
+    interface Listener {
+        void onChange(MotionGate.State state);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final MotionGate gate;
+    private final Listener listener;
+    private final String action;
+    private ActivityRecognitionClient activityClient = null;
+    private PendingIntent activityIntent = null;
+    private SensorManager sensorManager = null;
+    private Sensor significantMotion = null;
+    private boolean armed = false;
+    // Callbacks posted before the monitor stopped are ignored.
+    private boolean running = false;
+
+    private final BroadcastReceiver activityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!ActivityTransitionResult.hasResult(intent)) {
+                return;
+            }
+            for (ActivityTransitionEvent event : ActivityTransitionResult.extractResult(intent).getTransitionEvents()) {
+                if (event.getActivityType() == DetectedActivity.STILL) {
+                    change(gate.onActivity(
+                            event.getTransitionType() == ActivityTransition.ACTIVITY_TRANSITION_ENTER
+                    ));
+                }
+            }
+        }
+    };
+
+    private final TriggerEventListener motionListener = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            // Trigger sensors disarm themselves once they fire.
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    armed = false;
+                    if (running) {
+                        change(gate.onSignificantMotion());
+                    }
+                }
+            });
+        }
+    };
+
+    MotionMonitor(Context context, Handler handler, MotionGate gate, Listener listener) {
+        this.context = context;
+        this.handler = handler;
+        this.gate = gate;
+        this.listener = listener;
+        this.action = context.getPackageName() + ".ACTIVITY_TRANSITION";
+    }
+
+    void start() {
+        running = true;
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (sensorManager != null) {
+            significantMotion = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        }
+        gate.setSignificantMotion(significantMotion != null);
+
+        IntentFilter filter = new IntentFilter(action);
+        if (Build.VERSION.SDK_INT >= 33) {
+            // Broadcasts sent through our own PendingIntent carry our
+            // identity, so the receiver need not be exported.
+            context.registerReceiver(activityReceiver, filter, null, handler, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(activityReceiver, filter, null, handler);
+        }
+        // Activity recognition fills in the intent's extras, so the
+        // PendingIntent must be mutable.
+        activityIntent = PendingIntent.getBroadcast(
+                context,
+                0,
+                new Intent(action).setPackage(context.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT | (
+                        Build.VERSION.SDK_INT >= 31 ? PendingIntent.FLAG_MUTABLE : 0
+                )
+        );
+        ArrayList<ActivityTransition> transitions = new ArrayList<ActivityTransition>();
+        transitions.add(new ActivityTransition.Builder()
+                .setActivityType(DetectedActivity.STILL)
+                .setActivityTransition(ActivityTransition.ACTIVITY_TRANSITION_ENTER)
+                .build());
+        transitions.add(new ActivityTransition.Builder()
+                .setActivityType(DetectedActivity.STILL)
+                .setActivityTransition(ActivityTransition.ACTIVITY_TRANSITION_EXIT)
+                .build());
+        activityClient = ActivityRecognition.getClient(context);
+        try {
+            activityClient.requestActivityTransitionUpdates(
+                    new ActivityTransitionRequest(transitions),
+                    activityIntent
+            ).addOnSuccessListener(new OnSuccessListener<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            gate.setActivityRecognition(running);
+                        }
+                    });
+                }
+            }).addOnFailureListener(new OnFailureListener() {
+                @Override
+                public void onFailure(Exception exception) {
+                    Logger.debug("Activity recognition unavailable: " + exception.getMessage());
+                }
+            });
+        } catch (SecurityException exception) {
+            Logger.debug("Activity recognition not permitted");
+        }
+    }
+
+    void stop() {
+        running = false;
+        disarm();
+        if (activityClient != null) {
+            try {
+                activityClient.removeActivityTransitionUpdates(activityIntent);
+            } catch (SecurityException ignore) {}
+            activityClient = null;
+        }
+        if (activityIntent != null) {
+            context.unregisterReceiver(activityReceiver);
+            activityIntent.cancel();
+            activityIntent = null;
+        }
+        gate.setActivityRecognition(false);
+        gate.setSignificantMotion(false);
+    }
+
+    // Must be called whenever the gate's state changes, whatever the cause,
+    // so that the significant motion sensor is armed while stationary.
+    void onChange(MotionGate.State state) {
+        if (state == MotionGate.State.STATIONARY) {
+            arm();
+        } else {
+            disarm();
+        }
+    }
+
+    private void change(MotionGate.State state) {
+        if (state != null) {
+            listener.onChange(state);
+        }
+    }
+
+    private void arm() {
+        if (significantMotion != null && !armed) {
+            armed = sensorManager.requestTriggerSensor(motionListener, significantMotion);
+        }
+    }
+
+    private void disarm() {
+        if (armed) {
+            sensorManager.cancelTriggerSensor(motionListener, significantMotion);
+            armed = false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.getcapacitor.JSObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and latency histograms describing the tracking pipeline, from the
+// provider delivering a location to the plugin resolving a callback.
+// Recording is lock-free and allocates nothing, so it is safe on the hot
+// path. Reading is done rarely, by getStats.
+class PipelineStats {
+    // A histogram of durations with power-of-two buckets: bucket i counts
+    // durations, in microseconds, below 2^i. Percentiles are reported as the
+    // upper bound of their bucket, so are accurate to within a factor of two.
+    static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long current = max.get();
+            while (micros > current && !max.compareAndSet(current, micros)) {
+                current = max.get();
+            }
+        }
+
+        // The upper bound, in microseconds, of the given fraction of samples.
+        long percentile(double fraction) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return Math.min(1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        JSObject toJSObject() {
+            long total = count.get();
+            JSObject obj = new JSObject();
+            obj.put("count", total);
+            obj.put("mean", total == 0 ? 0 : sum.get() / total);
+            obj.put("p50", percentile(0.5));
+            obj.put("p95", percentile(0.95));
+            obj.put("p99", percentile(0.99));
+            obj.put("max", max.get());
+            return obj;
+        }
+    }
+
+    static class Counters {
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong filtered = new AtomicLong();
+
+        JSObject toJSObject() {
+            JSObject obj = new JSObject();
+            obj.put("delivered", delivered.get());
+            obj.put("dropped", dropped.get());
+            obj.put("filtered", filtered.get());
+            return obj;
+        }
+    }
+
+    // Time between a location being produced and the service receiving it.
+    final Histogram providerLag = new Histogram();
+    // Time between the service handing locations to the delivery thread and
+    // the plugin resolving the callback.
+    final Histogram dispatchLatency = new Histogram();
+    final AtomicLong outages = new AtomicLong();
+    final AtomicLong outageTime = new AtomicLong();
+    private final AtomicLong outageStart = new AtomicLong(-1);
+    private final ConcurrentHashMap<String, Counters> watchers = new ConcurrentHashMap<String, Counters>();
+
+    Counters addWatcher(String id) {
+        Counters counters = new Counters();
+        watchers.put(id, counters);
+        return counters;
+    }
+
+    // Only removes the given counters, so that removing a watcher that has
+    // been replaced under the same ID leaves its replacement's counters.
+    void removeWatcher(String id, Counters counters) {
+        watchers.remove(id, counters);
+    }
+
+    // Returns null if the watcher is unknown, for example once removed.
+    Counters getWatcher(String id) {
+        return watchers.get(id);
+    }
+
+    // Tracks LocationAvailability. The time is a monotonic timestamp in
+    // milliseconds.
+    void setAvailable(boolean available, long time) {
+        if (!available) {
+            if (outageStart.compareAndSet(-1, time)) {
+                outages.incrementAndGet();
+            }
+        } else {
+            long start = outageStart.getAndSet(-1);
+            if (start >= 0) {
+                outageTime.addAndGet(time - start);
+            }
+        }
+    }
+
+    JSObject toJSObject() {
+        JSObject obj = new JSObject();
+        obj.put("providerLag", providerLag.toJSObject());
+        obj.put("dispatchLatency", dispatchLatency.toJSObject());
+        obj.put("outages", outages.get());
+        obj.put("outageTime", outageTime.get());
+        JSObject perWatcher = new JSObject();
+        for (Map.Entry<String, Counters> entry : watchers.entrySet()) {
+            perWatcher.put(entry.getKey(), entry.getValue().toJSObject());
+        }
+        obj.put("watchers", perWatcher);
+        return obj;
+    }
+}
@@ -0,0 +1,385 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Xml;
+
+import com.getcapacitor.Logger;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// Stands in for the fused location provider, replaying a recorded or
+// synthetic track so that the rest of the pipeline can be exercised without
+// a moving device. Locations are emitted on the service's thread, paced by
+// their recorded times divided by the speed factor. Each location is
+// restamped with the current time as it is emitted and marked as simulated.
+class ReplaySource implements LocationMultiplexer.Source {
+    interface Track {
+        // Returns the next location, or null at the end of the track. Only
+        // the location's time is used for pacing.
+        Location next() throws IOException;
+        void close();
+    }
+
+    interface Sink {
+        void onLocations(ArrayList<Location> locations);
+    }
+
+    private final Handler handler;
+    private final Track track;
+    private final double speed;
+    private final Sink sink;
+    private boolean running = false;
+    // Whether the next location should be aligned with the current time,
+    // which happens whenever the replay (re)starts.
+    private boolean rebase = false;
+    private Location pending = null;
+    private long trackStart;
+    private long clockStart;
+
+    private final Runnable emitTask = new Runnable() {
+        @Override
+        public void run() {
+            emit();
+        }
+    };
+
+    ReplaySource(Handler handler, Track track, double speed, Sink sink) {
+        this.handler = handler;
+        this.track = track;
+        this.speed = speed > 0 ? speed : 1;
+        this.sink = sink;
+    }
+
+    // The requested interval and priority are ignored: the track decides
+    // the rate, and each watcher filters it down in software.
+    @Override
+    public void requestUpdates(
+            long interval,
+            long fastestInterval,
+            int priority,
+            long maxWaitTime,
+            float smallestDisplacement
+    ) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!running) {
+                    running = true;
+                    rebase = true;
+                    emit();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void removeUpdates() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                handler.removeCallbacks(emitTask);
+            }
+        });
+    }
+
+    // Ends the replay for good, releasing the track.
+    void close() {
+        removeUpdates();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                track.close();
+            }
+        });
+    }
+
+    // Emits every location that is due, then schedules the next.
+    private void emit() {
+        if (!running) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<Location> due = new ArrayList<Location>(1);
+        try {
+            while (true) {
+                if (pending == null) {
+                    pending = track.next();
+                    if (pending == null) {
+                        break;
+                    }
+                }
+                if (rebase) {
+                    rebase = false;
+                    trackStart = pending.getTime();
+                    clockStart = now;
+                }
+                long at = clockStart + (long) ((pending.getTime() - trackStart) / speed);
+                if (at > now) {
+                    break;
+                }
+                due.add(stamp(pending));
+                pending = null;
+            }
+        } catch (IOException exception) {
+            Logger.error("Failed to read replay track", exception);
+            pending = null;
+        }
+        if (!due.isEmpty()) {
+            sink.onLocations(due);
+        }
+        if (pending != null) {
+            long at = clockStart + (long) ((pending.getTime() - trackStart) / speed);
+            handler.postDelayed(emitTask, Math.max(0, at - SystemClock.elapsedRealtime()));
+        } else {
+            Logger.debug("Replay finished");
+            running = false;
+        }
+    }
+
+    private static Location stamp(Location location) {
+        location.setTime(System.currentTimeMillis());
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        if (Build.VERSION.SDK_INT >= 31) {
+            location.setMock(true);
+        }
+        return location;
+    }
+
+    private static Location newLocation(long time, double latitude, double longitude) {
+        Location location = new Location("replay");
+        location.setTime(time);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        return location;
+    }
+
+    // Reads lines of the form
+    // time,latitude,longitude[,accuracy[,altitude[,speed[,bearing]]]]
+    // where time is in milliseconds since the unix epoch. Empty fields are
+    // treated as missing, and lines that do not start with a number, such as
+    // a header, are skipped.
+    static class CsvTrack implements Track {
+        private final BufferedReader reader;
+
+        CsvTrack(File file) throws IOException {
+            reader = new BufferedReader(new FileReader(file));
+        }
+
+        @Override
+        public Location next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                if (fields.length < 3) {
+                    continue;
+                }
+                try {
+                    Location location = newLocation(
+                            Long.parseLong(fields[0].trim()),
+                            Double.parseDouble(fields[1].trim()),
+                            Double.parseDouble(fields[2].trim())
+                    );
+                    if (fields.length > 3 && !fields[3].trim().isEmpty()) {
+                        location.setAccuracy(Float.parseFloat(fields[3].trim()));
+                    }
+                    if (fields.length > 4 && !fields[4].trim().isEmpty()) {
+                        location.setAltitude(Double.parseDouble(fields[4].trim()));
+                    }
+                    if (fields.length > 5 && !fields[5].trim().isEmpty()) {
+                        location.setSpeed(Float.parseFloat(fields[5].trim()));
+                    }
+                    if (fields.length > 6 && !fields[6].trim().isEmpty()) {
+                        location.setBearing(Float.parseFloat(fields[6].trim()));
+                    }
+                    return location;
+                } catch (NumberFormatException ignore) {}
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    // Reads the track points (and route or way points) of a GPX file,
+    // which must have UTC times.
+    static class GpxTrack implements Track {
+        private final InputStream input;
+        private final XmlPullParser parser = Xml.newPullParser();
+        private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+
+        GpxTrack(File file) throws IOException {
+            input = new FileInputStream(file);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                parser.setInput(input, null);
+            } catch (XmlPullParserException exception) {
+                close();
+                throw new IOException(exception);
+            }
+        }
+
+        @Override
+        public Location next() throws IOException {
+            try {
+                Location location = null;
+                String text = null;
+                for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                    String name = parser.getName();
+                    if (event == XmlPullParser.START_TAG) {
+                        if ("trkpt".equals(name) || "rtept".equals(name) || "wpt".equals(name)) {
+                            location = newLocation(
+                                    0,
+                                    Double.parseDouble(parser.getAttributeValue(null, "lat")),
+                                    Double.parseDouble(parser.getAttributeValue(null, "lon"))
+                            );
+                        }
+                        text = null;
+                    } else if (event == XmlPullParser.TEXT) {
+                        text = parser.getText();
+                    } else if (event == XmlPullParser.END_TAG && location != null) {
+                        if ("ele".equals(name) && text != null) {
+                            location.setAltitude(Double.parseDouble(text.trim()));
+                        } else if ("time".equals(name) && text != null) {
+                            location.setTime(parseTime(text.trim()));
+                        } else if ("trkpt".equals(name) || "rtept".equals(name) || "wpt".equals(name)) {
+                            return location;
+                        }
+                    }
+                }
+                return null;
+            } catch (XmlPullParserException | NumberFormatException | ParseException exception) {
+                throw new IOException(exception);
+            }
+        }
+
+        // Parses times like 2020-01-01T00:00:00Z or 2020-01-01T00:00:00.123Z.
+        private long parseTime(String text) throws ParseException {
+            long time = format.parse(text.substring(0, Math.min(19, text.length()))).getTime();
+            if (text.length() > 20 && text.charAt(19) == '.') {
+                int end = 20;
+                while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                    end++;
+                }
+                String fraction = (text.substring(20, end) + "000").substring(0, 3);
+                time += Integer.parseInt(fraction);
+            }
+            return time;
+        }
+
+        @Override
+        public void close() {
+            try {
+                input.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    // Reads a journal, as written by LocationJournal, from the oldest
+    // unacknowledged location.
+    static class JournalTrack implements Track {
+        private final LocationJournal journal;
+        // Whether the journal was opened for the track, and so is closed
+        // with it.
+        private final boolean owned;
+        private final ArrayList<Location> page = new ArrayList<Location>();
+        private long cursor = 0;
+        private int index = 0;
+
+        JournalTrack(File directory) throws IOException {
+            if (!directory.isDirectory()) {
+                throw new IOException("No journal at " + directory);
+            }
+            journal = new LocationJournal(directory);
+            owned = true;
+        }
+
+        // Reads a journal that is already open, and is left open.
+        JournalTrack(LocationJournal journal) {
+            this.journal = journal;
+            owned = false;
+        }
+
+        @Override
+        public Location next() throws IOException {
+            if (index == page.size()) {
+                page.clear();
+                index = 0;
+                cursor = journal.read(cursor, 1000, page);
+                if (page.isEmpty()) {
+                    return null;
+                }
+            }
+            return page.get(index++);
+        }
+
+        @Override
+        public void close() {
+            if (owned) {
+                journal.close();
+            }
+        }
+    }
+
+    // Generates an endless track at the given rate, circling the centre at
+    // the given speed.
+    static class SyntheticTrack implements Track {
+        private static final double RADIUS = 500;
+        private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+        private final double rate;
+        private final double latitude;
+        private final double longitude;
+        private final float speed;
+        private final long start = System.currentTimeMillis();
+        private long count = 0;
+
+        SyntheticTrack(double rate, double latitude, double longitude, float speed) {
+            this.rate = rate > 0 ? rate : 1;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.speed = speed;
+        }
+
+        @Override
+        public Location next() {
+            double seconds = count / rate;
+            double angle = speed * seconds / RADIUS;
+            Location location = newLocation(
+                    start + (long) (seconds * 1000),
+                    latitude + RADIUS * Math.cos(angle) / METRES_PER_DEGREE,
+                    longitude + RADIUS * Math.sin(angle) / (
+                            METRES_PER_DEGREE * Math.cos(Math.toRadians(latitude))
+                    )
+            );
+            location.setAccuracy(5);
+            location.setSpeed(speed);
+            location.setBearing((float) ((Math.toDegrees(angle) + 90) % 360));
+            count += 1;
+            return location;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,487 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// Records a session of locations to a file in a compact columnar format, so
+// that a whole day's track can be kept natively and exported without ever
+// holding it in memory, least of all in the WebView.
+//
+// The file starts with MAGIC and VERSION, followed by blocks of up to
+// BLOCK_SIZE fixes. Each block has a header of big-endian ints, the number of
+// fixes and then the byte length of each of the COLUMNS columns, followed by
+// the columns themselves:
+// - flags, a byte per fix marking which optional fields are present
+// - time, in milliseconds since the unix epoch
+// - latitude and longitude, in units of 1e-7 degrees
+// - accuracy, in decimetres
+// - speed, in centimetres per second
+// - bearing, in tenths of a degree
+// - altitude, in decimetres
+// Time, latitude, longitude and altitude are stored as the difference from
+// the previous fix (across blocks, starting from zero), zigzag encoded. All
+// values are unsigned LEB128 varints, and optional fields are only stored for
+// fixes that have them. At one fix a second this comes to around 13 bytes a
+// fix, against 52 for LocationJournal's fixed records.
+class SessionRecorder {
+    static final int MAGIC = 0x42475352; // "BGSR"
+    static final byte VERSION = 1;
+    static final int BLOCK_SIZE = 1024;
+    static final int COLUMNS = 8;
+    // A partial block is written once its first fix is this old, so that
+    // little is lost if the process dies.
+    static final long BLOCK_AGE = 60000;
+
+    private static final int FLAGS = 0;
+    private static final int TIME = 1;
+    private static final int LATITUDE = 2;
+    private static final int LONGITUDE = 3;
+    private static final int ACCURACY = 4;
+    private static final int SPEED = 5;
+    private static final int BEARING = 6;
+    private static final int ALTITUDE = 7;
+
+    private static final int HAS_ACCURACY = 1;
+    private static final int HAS_SPEED = 1 << 1;
+    private static final int HAS_BEARING = 1 << 2;
+    private static final int HAS_ALTITUDE = 1 << 3;
+
+    private static final int HEADER_SIZE = 5;
+    private static final int BLOCK_HEADER_SIZE = 4 * (1 + COLUMNS);
+    private static final double DEGREE_SCALE = 1e7;
+
+    // A growable byte array that a block's column is built up in.
+    private static class Column {
+        byte[] data = new byte[BLOCK_SIZE * 2];
+        int size = 0;
+
+        void put(int value) {
+            if (size == data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((int) value);
+        }
+
+        void putSigned(long value) {
+            putVarint((value << 1) ^ (value >> 63));
+        }
+    }
+
+    private final FileChannel channel;
+    private final Column[] columns = new Column[COLUMNS];
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private int pending = 0;
+    private long blockStart;
+    private long count = 0;
+    private long size = HEADER_SIZE;
+    private boolean closed = false;
+    // The previous fix, which deltas are taken from.
+    private long time = 0;
+    private long latitude = 0;
+    private long longitude = 0;
+    private long altitude = 0;
+
+    // Starts a new session, replacing any existing file. The old file is
+    // deleted rather than truncated, so that an export still reading it is
+    // not disturbed.
+    SessionRecorder(File file) throws IOException {
+        file.delete();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        ByteBuffer start = ByteBuffer.allocate(HEADER_SIZE);
+        start.putInt(MAGIC);
+        start.put(VERSION);
+        start.flip();
+        while (start.hasRemaining()) {
+            channel.write(start);
+        }
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new Column();
+        }
+    }
+
+    // Locations appended once the recorder is closed are ignored.
+    synchronized void append(Location location) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (pending == 0) {
+            blockStart = location.getTime();
+        }
+        int flags = 0;
+        if (location.hasAccuracy()) {
+            flags |= HAS_ACCURACY;
+            columns[ACCURACY].putVarint(Math.round(location.getAccuracy() * 10));
+        }
+        if (location.hasSpeed()) {
+            flags |= HAS_SPEED;
+            columns[SPEED].putVarint(Math.round(location.getSpeed() * 100));
+        }
+        if (location.hasBearing()) {
+            flags |= HAS_BEARING;
+            columns[BEARING].putVarint(Math.round(location.getBearing() * 10) % 3600);
+        }
+        if (location.hasAltitude()) {
+            flags |= HAS_ALTITUDE;
+            long value = Math.round(location.getAltitude() * 10);
+            columns[ALTITUDE].putSigned(value - altitude);
+            altitude = value;
+        }
+        columns[FLAGS].put(flags);
+        columns[TIME].putSigned(location.getTime() - time);
+        time = location.getTime();
+        long value = Math.round(location.getLatitude() * DEGREE_SCALE);
+        columns[LATITUDE].putSigned(value - latitude);
+        latitude = value;
+        value = Math.round(location.getLongitude() * DEGREE_SCALE);
+        columns[LONGITUDE].putSigned(value - longitude);
+        longitude = value;
+        pending += 1;
+        count += 1;
+        if (pending == BLOCK_SIZE || time - blockStart >= BLOCK_AGE) {
+            flush();
+        }
+    }
+
+    // Writes the partial block, if any.
+    synchronized void flush() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        header.clear();
+        header.putInt(pending);
+        for (Column column : columns) {
+            header.putInt(column.size);
+        }
+        header.flip();
+        ByteBuffer[] buffers = new ByteBuffer[1 + COLUMNS];
+        buffers[0] = header;
+        for (int i = 0; i < COLUMNS; i++) {
+            buffers[i + 1] = ByteBuffer.wrap(columns[i].data, 0, columns[i].size);
+        }
+        long remaining = BLOCK_HEADER_SIZE;
+        for (Column column : columns) {
+            remaining += column.size;
+        }
+        try {
+            long written = remaining;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            size += written;
+        } catch (IOException exception) {
+            // Cut off the partial block, so that the block is written whole
+            // or not at all when retried.
+            channel.truncate(size);
+            throw exception;
+        }
+        for (Column column : columns) {
+            column.size = 0;
+        }
+        pending = 0;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    // The size of the file in bytes, not counting the partial block.
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Reads a session back, fix by fix, reusing its fields for each fix.
+    // Blocks that have not been written yet, or that end past the limit, are
+    // not seen. Reads are positional, so readers can share a channel.
+    static class Reader implements Closeable {
+        long time;
+        double latitude;
+        double longitude;
+        // NaN when missing.
+        float accuracy;
+        float speed;
+        float bearing;
+        double altitude;
+
+        private final FileChannel channel;
+        // Whether the channel is closed with the reader.
+        private final boolean owned;
+        private final long limit;
+        private long position = 0;
+        private long end = HEADER_SIZE;
+        private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * 16);
+        private final int[] positions = new int[COLUMNS];
+        private int remaining = 0;
+        private long rawLatitude = 0;
+        private long rawLongitude = 0;
+        private long rawAltitude = 0;
+
+        Reader(File file) throws IOException {
+            this(new RandomAccessFile(file, "r").getChannel(), true, Long.MAX_VALUE);
+        }
+
+        // Reads no more than the first limit bytes of a channel, which is
+        // left open.
+        Reader(FileChannel channel, long limit) throws IOException {
+            this(channel, false, limit);
+        }
+
+        private Reader(FileChannel channel, boolean owned, long limit) throws IOException {
+            this.channel = channel;
+            this.owned = owned;
+            this.limit = limit;
+            ByteBuffer start = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readFully(start) || start.getInt() != MAGIC || start.get() != VERSION) {
+                close();
+                throw new IOException("Not a session recording");
+            }
+        }
+
+        // Advances to the next fix, returning false at the end.
+        boolean next() throws IOException {
+            if (remaining == 0 && !readBlock()) {
+                return false;
+            }
+            remaining -= 1;
+            int flags = block.get(positions[FLAGS]++);
+            time += getSigned(TIME);
+            rawLatitude += getSigned(LATITUDE);
+            rawLongitude += getSigned(LONGITUDE);
+            latitude = rawLatitude / DEGREE_SCALE;
+            longitude = rawLongitude / DEGREE_SCALE;
+            accuracy = (flags & HAS_ACCURACY) != 0 ? getVarint(ACCURACY) / 10f : Float.NaN;
+            speed = (flags & HAS_SPEED) != 0 ? getVarint(SPEED) / 100f : Float.NaN;
+            bearing = (flags & HAS_BEARING) != 0 ? getVarint(BEARING) / 10f : Float.NaN;
+            if ((flags & HAS_ALTITUDE) != 0) {
+                rawAltitude += getSigned(ALTITUDE);
+                altitude = rawAltitude / 10.0;
+            } else {
+                altitude = Double.NaN;
+            }
+            return true;
+        }
+
+        // The offset just past the last whole block read.
+        long getEnd() {
+            return end;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (owned) {
+                channel.close();
+            }
+        }
+
+        private boolean readBlock() throws IOException {
+            header.clear();
+            if (!readFully(header)) {
+                return false;
+            }
+            int fixes = header.getInt();
+            int size = 0;
+            for (int i = 0; i < COLUMNS; i++) {
+                positions[i] = size;
+                size += header.getInt();
+            }
+            if (block.capacity() < size) {
+                block = ByteBuffer.allocate(size);
+            }
+            block.clear();
+            block.limit(size);
+            if (!readFully(block)) {
+                // A truncated block, from the process dying mid-write.
+                return false;
+            }
+            end = position;
+            remaining = fixes;
+            return fixes > 0;
+        }
+
+        // Fills the buffer and flips it, returning false at the end of the
+        // file or the limit.
+        private boolean readFully(ByteBuffer buffer) throws IOException {
+            if (position + buffer.remaining() > limit) {
+                return false;
+            }
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return false;
+                }
+                position += read;
+            }
+            buffer.flip();
+            return true;
+        }
+
+        private long getVarint(int column) {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = block.get(positions[column]++);
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private long getSigned(int column) {
+            long value = getVarint(column);
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    // Copies a session to the given file, as is ("binary"), as GPX ("gpx")
+    // or as a GeoJSON LineString feature ("geojson"), streaming it so that
+    // memory use does not depend on the session's length. Returns the number
+    // of fixes exported.
+    //
+    // The session may still be recording, so only the blocks written when
+    // the export starts are exported, and every pass over the session reads
+    // the same ones, from the same file even if a new session replaces it.
+    static long export(File session, File out, String format) throws IOException {
+        FileChannel from = new RandomAccessFile(session, "r").getChannel();
+        try {
+            long limit = from.size();
+            if ("gpx".equals(format)) {
+                return exportText(from, limit, out, true);
+            }
+            if ("geojson".equals(format)) {
+                return exportText(from, limit, out, false);
+            }
+            Reader reader = new Reader(from, limit);
+            long fixes = 0;
+            while (reader.next()) {
+                fixes += 1;
+            }
+            // Leaving off any block still being written.
+            long end = reader.getEnd();
+            FileChannel to = new RandomAccessFile(out, "rw").getChannel();
+            try {
+                to.truncate(0);
+                long position = 0;
+                while (position < end) {
+                    position += from.transferTo(position, end - position, to);
+                }
+            } finally {
+                to.close();
+            }
+            return fixes;
+        } finally {
+            from.close();
+        }
+    }
+
+    private static long exportText(FileChannel session, long limit, File out, boolean gpx) throws IOException {
+        FileChannel channel = new RandomAccessFile(out, "rw").getChannel();
+        channel.truncate(0);
+        Writer writer = Channels.newWriter(channel, "UTF-8");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date date = new Date();
+        long fixes = 0;
+        try {
+            Reader reader = new Reader(session, limit);
+            try {
+                if (gpx) {
+                    writer.write(
+                            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                            "<gpx version=\"1.1\" creator=\"capacitor-background-geolocation\" " +
+                            "xmlns=\"http://www.topografix.com/GPX/1/1\">\n<trk><trkseg>\n"
+                    );
+                } else {
+                    writer.write(
+                            "{\"type\":\"Feature\",\"geometry\":" +
+                            "{\"type\":\"LineString\",\"coordinates\":["
+                    );
+                }
+                while (reader.next()) {
+                    date.setTime(reader.time);
+                    if (gpx) {
+                        writer.write("<trkpt lat=\"" + plain(reader.latitude) + "\" lon=\"" + plain(reader.longitude) + "\">");
+                        if (!Double.isNaN(reader.altitude)) {
+                            writer.write("<ele>" + reader.altitude + "</ele>");
+                        }
+                        writer.write("<time>" + format.format(date) + "</time></trkpt>\n");
+                    } else {
+                        writer.write(fixes == 0 ? "[" : ",[");
+                        writer.write(plain(reader.longitude) + "," + plain(reader.latitude));
+                        if (!Double.isNaN(reader.altitude)) {
+                            writer.write("," + reader.altitude);
+                        }
+                        writer.write("]");
+                    }
+                    fixes += 1;
+                }
+            } finally {
+                reader.close();
+            }
+            if (gpx) {
+                writer.write("</trkseg></trk>\n</gpx>\n");
+            } else {
+                // The times go in a second pass, so that neither pass holds
+                // more than a fix at a time.
+                writer.write("]},\"properties\":{\"coordTimes\":[");
+                reader = new Reader(session, limit);
+                try {
+                    long times = 0;
+                    while (times < fixes && reader.next()) {
+                        date.setTime(reader.time);
+                        writer.write((times == 0 ? "\"" : ",\"") + format.format(date) + "\"");
+                        times += 1;
+                    }
+                } finally {
+                    reader.close();
+                }
+                writer.write("]}}\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return fixes;
+    }
+
+    // Without an exponent, which GPX does not allow, for degrees near zero.
+    private static String plain(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,124 @@
+package com.equimaps.capacitor_background_geolocation;
+
+// A hashed timer wheel, so that any number of timers with different periods
+// share a single periodic tick. Each slot holds an intrusive doubly linked
+// list of the timers falling due in it, so scheduling, cancelling and expiring
+// a timer take constant time and allocate nothing. Timers fire on the first
+// tick at or after their deadline, so are accurate to within one tick.
+//
+// Not thread safe. Times are monotonic timestamps in milliseconds.
+class TimerWheel {
+    abstract static class Timer {
+        private long deadline;
+        private Timer previous = null;
+        private Timer next = null;
+        private int slot = -1;
+
+        // Called once the deadline has passed. The timer may reschedule
+        // itself, but must not cancel other timers.
+        abstract void onExpired(long now);
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tick;
+    private final Timer[] slots;
+    // The index of the next tick to process.
+    private long current;
+    private int size = 0;
+
+    TimerWheel(long tick, int slots, long now) {
+        this.tick = tick;
+        this.slots = new Timer[slots];
+        this.current = now / tick;
+    }
+
+    long getTick() {
+        return tick;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The earliest deadline of any scheduled timer, or Long.MAX_VALUE if
+    // there are none. This visits every slot, so is for occasional use, like
+    // arming a wakeup for the next timer.
+    long getNextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < slots.length && size > 0; i++) {
+            for (Timer timer = slots[i]; timer != null; timer = timer.next) {
+                earliest = Math.min(earliest, timer.deadline);
+            }
+        }
+        return earliest;
+    }
+
+    // Schedules the timer, first cancelling it if it is already scheduled.
+    // A deadline in the past fires on the next tick.
+    void schedule(Timer timer, long deadline) {
+        cancel(timer);
+        timer.deadline = deadline;
+        // Rounding up means a timer's deadline has always passed by the time
+        // its tick is processed.
+        int slot = (int) (Math.max((deadline + tick - 1) / tick, current) % slots.length);
+        timer.slot = slot;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[slot] = timer;
+        size += 1;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.slot = -1;
+        size -= 1;
+    }
+
+    // Expires every timer that is due, visiting each slot that has come
+    // round since the last call. Timers due in a later round of the wheel
+    // are left in their slot.
+    void advance(long now) {
+        long target = now / tick;
+        if (target < current) {
+            return;
+        }
+        // Past a full turn, every slot needs visiting once.
+        long first = Math.max(current, target - slots.length + 1);
+        current = target + 1;
+        for (long t = first; t <= target && size > 0; t++) {
+            int slot = (int) (t % slots.length);
+            Timer timer = slots[slot];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= now) {
+                    cancel(timer);
+                    // A timer rescheduled into this slot goes to the head of
+                    // its list, so is not visited again in this pass.
+                    timer.onExpired(now);
+                }
+                timer = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+// Simplifies a stream of locations as it arrives, using the opening window
+// algorithm. Starting from the last kept location (the anchor), locations
+// are collected into a window for as long as a straight line from the anchor
+// to the newest location passes within the tolerance of every location in
+// the window. When it does not, the previous location is kept and becomes
+// the new anchor. The window is bounded, so memory and the cost per location
+// are constant.
+//
+// A location can only be judged once its successors are known, so the end of
+// the track is held in the window until the track turns or the window fills,
+// which can take WINDOW locations. To bound that, once the newest location is
+// maxDelay newer than the anchor it is kept outright, and flush releases the
+// newest location early, when no more are coming for a while.
+class TrackSimplifier {
+    static final int WINDOW = 32;
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    private final double tolerance;
+    private final long maxDelay;
+    private final Location[] window = new Location[WINDOW];
+    private int size = 0;
+    private Location anchor = null;
+    private int discarded = 0;
+
+    // The tolerance is the maximum distance, in metres, between a dropped
+    // location and the simplified track. The maximum delay is in
+    // milliseconds of elapsed realtime, and zero disables it.
+    TrackSimplifier(double tolerance, long maxDelay) {
+        this.tolerance = tolerance;
+        this.maxDelay = maxDelay;
+    }
+
+    // Adds a location, returning a location to keep or null. A null return
+    // does not mean the location was dropped, only that it is held in the
+    // window for now. See getDiscarded.
+    Location add(Location location) {
+        discarded = 0;
+        if (anchor == null) {
+            anchor = location;
+            return location;
+        }
+        if (size == WINDOW || deviates(location)) {
+            Location kept = window[size - 1];
+            anchor = kept;
+            discarded = size - 1;
+            clear();
+            window[size++] = location;
+            return kept;
+        }
+        if (
+                maxDelay > 0 &&
+                location.getElapsedRealtimeNanos() - anchor.getElapsedRealtimeNanos() >= maxDelay * 1000000
+        ) {
+            // The line to the location already fits the window, so it can be
+            // kept in place of the window's last location.
+            anchor = location;
+            discarded = size;
+            clear();
+            return location;
+        }
+        window[size++] = location;
+        return null;
+    }
+
+    // Keeps the newest location held in the window, if any, dropping the
+    // rest. The track up to it stays within the tolerance, but later
+    // locations are judged from it, so flushing often costs compression.
+    Location flush() {
+        discarded = 0;
+        if (size == 0) {
+            return null;
+        }
+        Location kept = window[size - 1];
+        anchor = kept;
+        discarded = size - 1;
+        clear();
+        return kept;
+    }
+
+    // Whether any locations are held in the window.
+    boolean isHolding() {
+        return size > 0;
+    }
+
+    // The number of locations the last call to add or flush dropped from the
+    // window.
+    int getDiscarded() {
+        return discarded;
+    }
+
+    // Whether the line from the anchor to the location strays too far from
+    // any location in the window.
+    private boolean deviates(Location location) {
+        double cos = Math.cos(Math.toRadians(anchor.getLatitude()));
+        double x = (location.getLongitude() - anchor.getLongitude()) * cos * METRES_PER_DEGREE;
+        double y = (location.getLatitude() - anchor.getLatitude()) * METRES_PER_DEGREE;
+        double lengthSquared = x * x + y * y;
+        for (int i = 0; i < size; i++) {
+            double px = (window[i].getLongitude() - anchor.getLongitude()) * cos * METRES_PER_DEGREE;
+            double py = (window[i].getLatitude() - anchor.getLatitude()) * METRES_PER_DEGREE;
+            // Distance to the nearest point on the segment.
+            double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * x + py * y) / lengthSquared));
+            double dx = px - t * x;
+            double dy = py - t * y;
+            if (dx * dx + dy * dy > tolerance * tolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clear() {
+        for (int i = 0; i < size; i++) {
+            window[i] = null;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,124 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import com.getcapacitor.PluginCall;
+import com.google.android.gms.location.LocationRequest;
+
+// The options passed to addWatcher that concern the service. See
+// WatcherOptions in definitions.d.ts for their documentation.
+class WatcherOptions {
+    // The location request, which a profile sets as a whole.
+    int priority = LocationRequest.PRIORITY_HIGH_ACCURACY;
+    long interval = 1000;
+    // Negative means a sixth of the interval, LocationRequest's default.
+    long fastestInterval = -1;
+    long maxWaitTime = 0;
+    float distanceFilter = 0f;
+    long minInterval = 0;
+    // Zero disables heartbeats.
+    long heartbeatInterval = 0;
+    int batchSize = 1;
+    long maxBatchLatency = 0;
+    boolean journal = false;
+    boolean upload = false;
+    boolean adaptive = false;
+    boolean motionGating = false;
+    long stationaryTimeout = 300000;
+    // Zero disables the filter.
+    float maxAccuracy = 0f;
+    // Zero disables simplification.
+    float simplifyTolerance = 0f;
+    long simplifyMaxDelay = 10000;
+    // Zero disables smoothing.
+    float smoothing = 0f;
+    // Zero disables flow control.
+    int maxInFlight = 0;
+    int bufferSize = 1000;
+    DeliveryBuffer.Overflow overflow = DeliveryBuffer.Overflow.DROP_OLDEST;
+    boolean geofence = false;
+    // Zero disables dwell transitions.
+    long dwellTime = 0;
+
+    static WatcherOptions from(PluginCall call) {
+        WatcherOptions options = new WatcherOptions();
+        // The profile provides defaults for the request, which may then be
+        // tuned field by field.
+        options.setProfile(call.getString("profile"));
+        options.priority = priorityFromName(call.getString("priority"), options.priority);
+        options.interval = Math.max(0, call.getInt("interval", (int) options.interval));
+        options.fastestInterval = call.getInt("fastestInterval", (int) options.fastestInterval);
+        if (options.fastestInterval < 0) {
+            options.fastestInterval = options.interval / 6;
+        }
+        options.maxWaitTime = Math.max(0, call.getInt("maxWaitTime", (int) options.maxWaitTime));
+        options.distanceFilter = call.getFloat("distanceFilter", options.distanceFilter);
+        options.minInterval = Math.max(0, call.getInt("minInterval", (int) options.minInterval));
+        options.heartbeatInterval = Math.max(0, call.getInt("heartbeatInterval", (int) options.heartbeatInterval));
+        options.batchSize = Math.max(1, call.getInt("batchSize", options.batchSize));
+        // By default, a batch waits no longer than it would take to fill at
+        // one location per second.
+        options.maxBatchLatency = call.getInt(
+                "maxBatchLatency",
+                options.batchSize > 1 ? options.batchSize * 1000 : 0
+        );
+        options.journal = call.getBoolean("journal", options.journal);
+        options.upload = call.getBoolean("upload", options.upload);
+        options.adaptive = call.getBoolean("adaptive", options.adaptive);
+        options.motionGating = call.getBoolean("motionGating", options.motionGating);
+        options.stationaryTimeout = call.getInt("stationaryTimeout", (int) options.stationaryTimeout);
+        options.maxAccuracy = call.getFloat("maxAccuracy", options.maxAccuracy);
+        options.simplifyTolerance = call.getFloat("simplifyTolerance", options.simplifyTolerance);
+        options.simplifyMaxDelay = Math.max(1, call.getInt("simplifyMaxDelay", (int) options.simplifyMaxDelay));
+        options.smoothing = call.getFloat("smoothing", options.smoothing);
+        options.maxInFlight = Math.max(0, call.getInt("maxInFlight", options.maxInFlight));
+        options.bufferSize = Math.max(1, call.getInt("bufferSize", options.bufferSize));
+        options.overflow = DeliveryBuffer.overflowFromName(call.getString("overflow"));
+        options.geofence = call.getBoolean("geofence", options.geofence);
+        options.dwellTime = call.getInt("dwellTime", (int) options.dwellTime);
+        return options;
+    }
+
+    // Unknown profiles leave the defaults: high accuracy every second, as
+    // before profiles existed.
+    void setProfile(String name) {
+        if ("navigation".equals(name)) {
+            setRequest(LocationRequest.PRIORITY_HIGH_ACCURACY, 1000, 500, 0, 0);
+        } else if ("fitness".equals(name)) {
+            // Locations are recorded rather than shown as they happen, so
+            // they can be delivered in batches, letting the device sleep.
+            setRequest(LocationRequest.PRIORITY_HIGH_ACCURACY, 3000, 1000, 30000, 5);
+        } else if ("city".equals(name)) {
+            setRequest(LocationRequest.PRIORITY_LOW_POWER, 600000, 120000, 0, 1000);
+        } else if ("passive".equals(name)) {
+            // Never causes locations to be computed, only receiving those
+            // that other apps, or other watchers, ask for.
+            setRequest(LocationRequest.PRIORITY_NO_POWER, 60000, 10000, 0, 0);
+        }
+    }
+
+    private void setRequest(
+            int priority,
+            long interval,
+            long fastestInterval,
+            long maxWaitTime,
+            float distanceFilter
+    ) {
+        this.priority = priority;
+        this.interval = interval;
+        this.fastestInterval = fastestInterval;
+        this.maxWaitTime = maxWaitTime;
+        this.distanceFilter = distanceFilter;
+    }
+
+    private static int priorityFromName(String name, int fallback) {
+        if ("high".equals(name)) {
+            return LocationRequest.PRIORITY_HIGH_ACCURACY;
+        } else if ("balanced".equals(name)) {
+            return LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+        } else if ("low".equals(name)) {
+            return LocationRequest.PRIORITY_LOW_POWER;
+        } else if ("passive".equals(name)) {
+            return LocationRequest.PRIORITY_NO_POWER;
+        }
+        return fallback;
+    }
+}
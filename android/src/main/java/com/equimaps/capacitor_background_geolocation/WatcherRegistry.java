@@ -0,0 +1,137 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Holds the service's watchers by ID, along with the number that have a
+// background notification and the number that are motion gated. The plugin
+// adds and removes watchers while the service's thread looks them up, so
+// every operation takes the registry's lock, and the counts always agree
+// with the map. The listener is called under the same lock, so promoting and
+// demoting the service can never happen out of order.
+class WatcherRegistry<W> {
+    interface Listener<W> {
+        // Called whenever a background watcher is added, replacements
+        // included, since each brings its own notification.
+        void onPromote(W watcher);
+        // Called once no background watchers remain.
+        void onDemote();
+        // Called when the first motion gated watcher is added, and once none
+        // remain.
+        void onGatingStarted();
+        void onGatingStopped();
+    }
+
+    private static class Entry<W> {
+        final W watcher;
+        final boolean background;
+        final boolean gated;
+
+        Entry(W watcher, boolean background, boolean gated) {
+            this.watcher = watcher;
+            this.background = background;
+            this.gated = gated;
+        }
+    }
+
+    private final HashMap<String, Entry<W>> entries = new HashMap<String, Entry<W>>();
+    private final Listener<W> listener;
+    private int background = 0;
+    private int gated = 0;
+
+    WatcherRegistry(Listener<W> listener) {
+        this.listener = listener;
+    }
+
+    // Adds a watcher, returning the watcher it replaced, if any. The
+    // replacement is counted before the watcher it replaces is uncounted, so
+    // replacing a watcher with a similar one never demotes the service or
+    // stops motion gating in between.
+    synchronized W put(String id, W watcher, boolean background, boolean gated) {
+        Entry<W> previous = entries.put(id, new Entry<W>(watcher, background, gated));
+        count(background, gated, 1);
+        if (background) {
+            listener.onPromote(watcher);
+        }
+        if (previous == null) {
+            return null;
+        }
+        count(previous.background, previous.gated, -1);
+        return previous.watcher;
+    }
+
+    // Removes a watcher, returning it, or null if there was none.
+    synchronized W remove(String id) {
+        Entry<W> entry = entries.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        count(entry.background, entry.gated, -1);
+        return entry.watcher;
+    }
+
+    // Removes every watcher, returning them.
+    synchronized ArrayList<W> clear() {
+        ArrayList<W> removed = new ArrayList<W>(entries.size());
+        for (Entry<W> entry : entries.values()) {
+            removed.add(entry.watcher);
+        }
+        entries.clear();
+        if (background > 0) {
+            background = 0;
+            listener.onDemote();
+        }
+        if (gated > 0) {
+            gated = 0;
+            listener.onGatingStopped();
+        }
+        return removed;
+    }
+
+    synchronized W get(String id) {
+        Entry<W> entry = entries.get(id);
+        return entry != null ? entry.watcher : null;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // Copies, so that they can be iterated without the lock.
+    synchronized ArrayList<String> ids() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    synchronized ArrayList<W> values() {
+        ArrayList<W> values = new ArrayList<W>(entries.size());
+        for (Entry<W> entry : entries.values()) {
+            values.add(entry.watcher);
+        }
+        return values;
+    }
+
+    synchronized int getBackgroundCount() {
+        return background;
+    }
+
+    synchronized int getGatedCount() {
+        return gated;
+    }
+
+    private void count(boolean isBackground, boolean isGated, int delta) {
+        if (isBackground) {
+            background += delta;
+            if (background == 0) {
+                listener.onDemote();
+            }
+        }
+        if (isGated) {
+            gated += delta;
+            if (gated == 0) {
+                listener.onGatingStopped();
+            } else if (gated == 1 && delta > 0) {
+                listener.onGatingStarted();
+            }
+        }
+    }
+}
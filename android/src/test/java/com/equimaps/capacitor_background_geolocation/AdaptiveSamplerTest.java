@@ -0,0 +1,145 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveSamplerTest {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final long TIMEOUT = 300000;
+
+    // Feeds a location some metres north and east of the origin.
+    private static AdaptiveSampler.State feed(
+            AdaptiveSampler sampler,
+            double north,
+            double east,
+            float accuracy,
+            float speed,
+            long time
+    ) {
+        return sampler.update(
+                51.5 + north / METRES_PER_DEGREE,
+                -0.12 + east / (METRES_PER_DEGREE * Math.cos(Math.toRadians(51.5))),
+                accuracy,
+                speed,
+                time
+        );
+    }
+
+    @Test
+    public void walkingNeverBecomesStationary() {
+        AdaptiveSampler sampler = new AdaptiveSampler(TIMEOUT);
+        for (int t = 0; t < 3600; t++) {
+            assertNull(feed(sampler, 1.4 * t, 0, 5, 1.4f, t * 1000L));
+        }
+    }
+
+    @Test
+    public void becomesStationaryOnlyAfterTheTimeout() {
+        AdaptiveSampler sampler = new AdaptiveSampler(TIMEOUT);
+        Random random = new Random(1);
+        for (long t = 0; t < TIMEOUT; t += 1000) {
+            // Jitter within the still radius.
+            assertNull(feed(sampler, random.nextGaussian() * 5, random.nextGaussian() * 5, 10, 0.1f, t));
+        }
+        assertEquals(AdaptiveSampler.State.STATIONARY, feed(sampler, 0, 0, 10, 0.1f, TIMEOUT));
+        assertEquals(AdaptiveSampler.State.STATIONARY, sampler.getState());
+    }
+
+    @Test
+    public void inaccurateLocationsDoNotResetTheAnchor() {
+        AdaptiveSampler sampler = new AdaptiveSampler(TIMEOUT);
+        feed(sampler, 0, 0, 80, -1, 0);
+        // Further than the still radius, but within the accuracy.
+        for (long t = 1000; t < TIMEOUT; t += 1000) {
+            assertNull(feed(sampler, (t / 1000) % 2 == 0 ? 60 : -60, 0, 80, -1, t));
+        }
+        assertEquals(AdaptiveSampler.State.STATIONARY, feed(sampler, 0, 0, 80, -1, TIMEOUT));
+    }
+
+    @Test
+    public void hysteresisHoldsTheStationaryState() {
+        AdaptiveSampler sampler = stationary();
+        long t = TIMEOUT + 1000;
+        // Between the still and moving thresholds, in speed and in
+        // displacement, the device stays stationary.
+        for (int i = 0; i < 600; i++, t += 1000) {
+            assertNull(feed(sampler, 40, 0, 10, 1.0f, t));
+        }
+        // As it does through isolated spikes.
+        for (int i = 0; i < 10; i++, t += 2000) {
+            assertNull(feed(sampler, 0, 0, 10, 5f, t));
+            assertNull(feed(sampler, 0, 0, 10, 0f, t + 1000));
+        }
+        assertEquals(AdaptiveSampler.State.STATIONARY, sampler.getState());
+        // Consecutive evidence of movement is needed.
+        assertNull(feed(sampler, 0, 0, 10, 2f, t));
+        assertEquals(AdaptiveSampler.State.MOVING, feed(sampler, 0, 0, 10, 2f, t + 1000));
+    }
+
+    @Test
+    public void displacementAloneWakesTheDevice() {
+        AdaptiveSampler sampler = stationary();
+        long t = TIMEOUT + 1000;
+        // Speed unknown, but well outside the moving radius and the accuracy.
+        assertNull(feed(sampler, 100, 0, 10, -1, t));
+        assertEquals(AdaptiveSampler.State.MOVING, feed(sampler, 120, 0, 10, -1, t + 1000));
+    }
+
+    @Test
+    public void replaysACommute() {
+        // Walk for ten minutes, wait at a stop for ten, then ride a bus.
+        AdaptiveSampler sampler = new AdaptiveSampler(TIMEOUT);
+        Random random = new Random(2);
+        ArrayList<AdaptiveSampler.State> states = new ArrayList<AdaptiveSampler.State>();
+        ArrayList<Long> times = new ArrayList<Long>();
+        double north = 0;
+        for (long t = 0; t < 1800000; t += 1000) {
+            float speed;
+            if (t < 600000) {
+                speed = 1.4f;
+            } else if (t < 1200000) {
+                // Standing still, though the reported speed is not quite zero.
+                speed = 0.2f * (float) random.nextDouble();
+            } else {
+                speed = 8f;
+            }
+            if (speed > 1) {
+                north += speed;
+            }
+            AdaptiveSampler.State state = feed(
+                    sampler,
+                    north + random.nextGaussian() * 4,
+                    random.nextGaussian() * 4,
+                    12,
+                    speed,
+                    t
+            );
+            if (state != null) {
+                states.add(state);
+                times.add(t);
+            }
+        }
+        // Stationary once the timeout has passed at the stop, and moving
+        // again within a couple of seconds of the bus leaving.
+        assertEquals(2, states.size());
+        assertEquals(AdaptiveSampler.State.STATIONARY, states.get(0));
+        assertTrue(times.get(0) >= 600000 + TIMEOUT - 1000 && times.get(0) <= 600000 + TIMEOUT + 1000);
+        assertEquals(AdaptiveSampler.State.MOVING, states.get(1));
+        assertTrue(times.get(1) >= 1200000 && times.get(1) <= 1202000);
+    }
+
+    private static AdaptiveSampler stationary() {
+        AdaptiveSampler sampler = new AdaptiveSampler(TIMEOUT);
+        for (long t = 0; t <= TIMEOUT; t += 1000) {
+            feed(sampler, 0, 0, 10, 0, t);
+        }
+        assertEquals(AdaptiveSampler.State.STATIONARY, sampler.getState());
+        return sampler;
+    }
+}
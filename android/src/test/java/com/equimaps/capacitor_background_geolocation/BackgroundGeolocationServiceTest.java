@@ -0,0 +1,199 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.getcapacitor.JSObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+// Drives the service with a replayed track, checking that everything up to
+// the final hand-off to the bridge happens off the main thread, and
+// measuring the main thread's time per fix with and without a listener.
+@RunWith(RobolectricTestRunner.class)
+public class BackgroundGeolocationServiceTest {
+    private static final int FIXES = 500;
+    private static final long TIMEOUT = 10000;
+
+    private ServiceController<BackgroundGeolocationService> controller;
+    private BackgroundGeolocationService.LocalBinder service;
+
+    @Before
+    public void setUp() {
+        controller = Robolectric.buildService(BackgroundGeolocationService.class).create();
+        service = (BackgroundGeolocationService.LocalBinder) controller.get().onBind(new Intent());
+    }
+
+    @After
+    public void tearDown() {
+        service.stopReplay();
+        service.removeAllWatchers();
+        controller.destroy();
+    }
+
+    // A track whose fixes all fall due at once, so that the replay emits
+    // them without waiting on the paused clock.
+    private static ReplaySource.Track track() {
+        return new ReplaySource.Track() {
+            private int count = 0;
+
+            @Override
+            public Location next() {
+                if (count == FIXES) {
+                    return null;
+                }
+                count += 1;
+                Location location = new Location("test");
+                location.setTime(1700000000000L);
+                location.setLatitude(51.5 + count * 0.0001);
+                location.setLongitude(-0.12);
+                location.setAccuracy(5);
+                return location;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private void addWatcher(String id) {
+        WatcherOptions options = new WatcherOptions();
+        // Every fix is restamped with the same paused clock, so no interval
+        // may be enforced.
+        options.interval = 0;
+        options.fastestInterval = 0;
+        service.startReplay(track(), 1);
+        service.addWatcher(id, null, options);
+    }
+
+    private long delivered(String id) throws Exception {
+        return service.getStats().getJSONObject("watchers").getJSONObject(id).getLong("delivered");
+    }
+
+    // Runs the main looper until the count is reached, returning the time
+    // it spent running tasks.
+    private static long idleMainUntil(AtomicInteger count) throws InterruptedException {
+        long spent = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (count.get() < FIXES) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + count.get() + " of " + FIXES + " reached the main thread");
+            }
+            long start = System.nanoTime();
+            shadowOf(Looper.getMainLooper()).idle();
+            spent += System.nanoTime() - start;
+            Thread.sleep(1);
+        }
+        return spent;
+    }
+
+    @Test
+    public void leavesTheMainThreadOnlyTheFinalHandOff() throws Exception {
+        final Handler main = new Handler(Looper.getMainLooper());
+        final AtomicReference<Thread> deliveredOn = new AtomicReference<Thread>();
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger handedOff = new AtomicInteger();
+        service.setListener(new LocationDelivery.Listener() {
+            @Override
+            public boolean onLocations(String id, ArrayList<Location> locations) {
+                deliveredOn.set(Thread.currentThread());
+                // Encoded here, as the plugin does, so that only resolving
+                // the call is left to the bridge.
+                for (Location location : locations) {
+                    final JSObject encoded = LocationEncoder.OBJECT.encode(location);
+                    received.incrementAndGet();
+                    main.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (encoded.length() > 0) {
+                                handedOff.incrementAndGet();
+                            }
+                        }
+                    });
+                }
+                return true;
+            }
+
+            @Override
+            public void onResult(String id, JSObject data) {}
+
+            @Override
+            public void onEvent(String event, JSObject data) {}
+        });
+        addWatcher("listener");
+        // The main looper stays paused, yet every fix reaches the listener.
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (received.get() < FIXES) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + received.get() + " of " + FIXES + " delivered with the main thread paused");
+            }
+            Thread.sleep(10);
+        }
+        assertNotSame(Looper.getMainLooper().getThread(), deliveredOn.get());
+        assertEquals(0, handedOff.get());
+        // Which leaves the main thread exactly one task per fix.
+        long spent = idleMainUntil(handedOff);
+        assertEquals(FIXES, handedOff.get());
+        System.out.printf("Main thread with a listener: %.1f us per fix%n", spent / 1000.0 / FIXES);
+    }
+
+    @Test
+    public void measuresTheBroadcastFallback() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        LocalBroadcastManager.getInstance(controller.get()).registerReceiver(
+                new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        // As the plugin's receiver does, on the main thread.
+                        Location location = intent.getParcelableExtra("location");
+                        ArrayList<Location> locations = intent.getParcelableArrayListExtra("locations");
+                        if (location != null) {
+                            locations = new ArrayList<Location>(1);
+                            locations.add(location);
+                        }
+                        for (Location each : locations) {
+                            if (LocationEncoder.OBJECT.encode(each).length() > 0) {
+                                received.incrementAndGet();
+                            }
+                        }
+                    }
+                },
+                new IntentFilter(BackgroundGeolocationService.ACTION_BROADCAST)
+        );
+        addWatcher("broadcast");
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (delivered("broadcast") < FIXES) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + delivered("broadcast") + " of " + FIXES + " broadcast");
+            }
+            Thread.sleep(10);
+        }
+        // Nothing arrives until the main thread runs.
+        assertEquals(0, received.get());
+        long spent = idleMainUntil(received);
+        assertEquals(FIXES, received.get());
+        System.out.printf("Main thread with broadcasts: %.1f us per fix%n", spent / 1000.0 / FIXES);
+    }
+}
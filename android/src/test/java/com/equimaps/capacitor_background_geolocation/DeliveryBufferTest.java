@@ -0,0 +1,141 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeliveryBufferTest {
+    private static final int CAPACITY = 100;
+    private static final int CREDITS = 2;
+    // An hour of locations, one a second.
+    private static final int PRODUCED = 3600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // The outcome of feeding a buffer faster than its consumer keeps up.
+    private static class Run {
+        final ArrayList<Long> delivered = new ArrayList<Long>();
+        int dropped = 0;
+        int largest = 0;
+        boolean empty;
+    }
+
+    // Produces a location a second while the app acknowledges a delivery
+    // every ten seconds, then lets the app catch up. Locations are
+    // identified by their time.
+    private Run run(DeliveryBuffer.Overflow overflow) throws Exception {
+        File spill = new File(folder.getRoot(), "spill");
+        DeliveryBuffer buffer = new DeliveryBuffer(CAPACITY, overflow, CREDITS, 1, spill);
+        Run run = new Run();
+        int inFlight = 0;
+        for (int i = 0; i < PRODUCED; i++) {
+            Location location = new Location("test");
+            location.setTime(i);
+            run.dropped += buffer.add(Collections.singletonList(location));
+            run.largest = Math.max(run.largest, buffer.size());
+            if (i % 10 == 9 && inFlight > 0) {
+                buffer.acknowledge(1);
+                inFlight -= 1;
+            }
+            inFlight += drain(buffer, run);
+            assertTrue("in flight " + inFlight, inFlight <= CREDITS);
+        }
+        for (int i = 0; i < 100000 && inFlight > 0; i++) {
+            buffer.acknowledge(1);
+            inFlight -= 1;
+            inFlight += drain(buffer, run);
+        }
+        run.empty = buffer.size() == 0 && buffer.poll() == null;
+        buffer.close();
+        assertFalse(spill.exists());
+        return run;
+    }
+
+    // Delivers what the credits allow, returning the number of deliveries.
+    private static int drain(DeliveryBuffer buffer, Run run) {
+        int deliveries = 0;
+        ArrayList<Location> locations;
+        while ((locations = buffer.poll()) != null) {
+            for (Location location : locations) {
+                run.delivered.add(location.getTime());
+            }
+            deliveries += 1;
+        }
+        return deliveries;
+    }
+
+    private static void assertInOrder(ArrayList<Long> times) {
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue(times.get(i - 1) < times.get(i));
+        }
+    }
+
+    // Checks what every policy promises: memory stays bounded, order is
+    // kept, and every location is either delivered or counted as dropped.
+    private static void assertBounded(Run run) {
+        assertTrue("largest " + run.largest, run.largest <= CAPACITY);
+        assertInOrder(run.delivered);
+        assertEquals(PRODUCED, run.delivered.size() + run.dropped);
+        assertTrue(run.empty);
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestLocations() throws Exception {
+        Run run = run(DeliveryBuffer.Overflow.DROP_OLDEST);
+        assertBounded(run);
+        assertEquals(CAPACITY, run.largest);
+        // The backlog at the end is the newest locations, without gaps.
+        ArrayList<Long> tail = new ArrayList<Long>(
+                run.delivered.subList(run.delivered.size() - CAPACITY, run.delivered.size())
+        );
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(PRODUCED - CAPACITY + i, (long) tail.get(i));
+        }
+    }
+
+    @Test
+    public void dropNewestKeepsTheEarliestLocations() throws Exception {
+        Run run = run(DeliveryBuffer.Overflow.DROP_NEWEST);
+        assertBounded(run);
+        assertEquals(CAPACITY, run.largest);
+        // The first locations all arrive, and the newest are lost.
+        for (int i = 0; i < CAPACITY + CREDITS; i++) {
+            assertEquals(i, (long) run.delivered.get(i));
+        }
+        assertFalse(run.delivered.contains((long) PRODUCED - 1));
+    }
+
+    @Test
+    public void coalesceStartsAgainFromTheLatestLocation() throws Exception {
+        Run run = run(DeliveryBuffer.Overflow.COALESCE);
+        assertBounded(run);
+        // A full buffer is dropped whole.
+        assertTrue(run.dropped > 0);
+        assertEquals(0, run.dropped % CAPACITY);
+        assertEquals(PRODUCED - 1, (long) run.delivered.get(run.delivered.size() - 1));
+    }
+
+    @Test
+    public void spillDeliversEverythingWithBoundedMemory() throws Exception {
+        Run run = run(DeliveryBuffer.Overflow.SPILL);
+        assertBounded(run);
+        assertEquals(0, run.dropped);
+        for (int i = 0; i < PRODUCED; i++) {
+            assertEquals(i, (long) run.delivered.get(i));
+        }
+    }
+}
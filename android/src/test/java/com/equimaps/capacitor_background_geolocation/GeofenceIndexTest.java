@@ -0,0 +1,144 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeofenceIndexTest {
+    private static HashSet<String> find(GeofenceIndex index, double lat, double lon) {
+        ArrayList<GeofenceIndex.Geofence> found = new ArrayList<GeofenceIndex.Geofence>();
+        index.find(lat, lon, found);
+        HashSet<String> ids = new HashSet<String>();
+        for (GeofenceIndex.Geofence fence : found) {
+            assertTrue("found twice: " + fence.id, ids.add(fence.id));
+        }
+        return ids;
+    }
+
+    @Test
+    public void matchesALinearScanForFencesOfEverySize() {
+        Random random = new Random(1);
+        ArrayList<GeofenceIndex.Geofence> fences = new ArrayList<GeofenceIndex.Geofence>();
+        for (int i = 0; i < 3000; i++) {
+            double lat = 51 + random.nextDouble();
+            double lon = -1 + random.nextDouble() * 2;
+            if (i % 10 == 0) {
+                double size = random.nextDouble() * 0.2;
+                fences.add(GeofenceIndex.Geofence.polygon("p" + i, new double[]{
+                        lat, lon,
+                        lat + size, lon + size / 2,
+                        lat, lon + size
+                }));
+            } else {
+                // From a building to a city, log uniformly.
+                double radius = 20 * Math.pow(10, random.nextDouble() * 3.5);
+                fences.add(GeofenceIndex.Geofence.circle("c" + i, lat, lon, radius));
+            }
+        }
+        // And one the size of a country, bigger than the coarsest grid.
+        fences.add(GeofenceIndex.Geofence.circle("country", 51.5, 0, 2000000));
+        GeofenceIndex index = new GeofenceIndex();
+        index.add(fences);
+        for (int i = 0; i < 5000; i++) {
+            double lat = 50.9 + random.nextDouble() * 1.2;
+            double lon = -1.1 + random.nextDouble() * 2.2;
+            HashSet<String> expected = new HashSet<String>();
+            for (GeofenceIndex.Geofence fence : fences) {
+                if (fence.contains(lat, lon)) {
+                    expected.add(fence.id);
+                }
+            }
+            assertEquals(expected, find(index, lat, lon));
+        }
+    }
+
+    @Test
+    public void removesAndReplacesFences() {
+        GeofenceIndex index = new GeofenceIndex();
+        List<GeofenceIndex.Geofence> fences = Arrays.asList(
+                GeofenceIndex.Geofence.circle("small", 51.5, -0.12, 50),
+                GeofenceIndex.Geofence.circle("city", 51.5, -0.12, 20000)
+        );
+        index.add(fences);
+        assertEquals(new HashSet<String>(Arrays.asList("small", "city")), find(index, 51.5, -0.12));
+        // Replacing a fence with one of a different size moves it between
+        // levels.
+        index.add(Arrays.asList(GeofenceIndex.Geofence.circle("small", 51.5, -0.12, 30000)));
+        assertEquals(2, index.size());
+        assertEquals(new HashSet<String>(Arrays.asList("small", "city")), find(index, 51.65, -0.12));
+        index.remove("city");
+        assertEquals(new HashSet<String>(Arrays.asList("small")), find(index, 51.5, -0.12));
+        index.remove("small");
+        assertEquals(0, index.size());
+        assertTrue(find(index, 51.5, -0.12).isEmpty());
+    }
+
+    @Test
+    public void tracksTransitions() {
+        GeofenceIndex index = new GeofenceIndex();
+        index.add(Arrays.asList(GeofenceIndex.Geofence.circle("home", 51.5, -0.12, 100)));
+        GeofenceIndex.Tracker tracker = new GeofenceIndex.Tracker(60000);
+        final ArrayList<String> transitions = new ArrayList<String>();
+        GeofenceIndex.Tracker.Listener listener = new GeofenceIndex.Tracker.Listener() {
+            @Override
+            public void onTransition(String fenceId, String transition) {
+                transitions.add(fenceId + ":" + transition);
+            }
+        };
+        tracker.update(index, 51.51, -0.12, 0, listener);
+        tracker.update(index, 51.5, -0.12, 1000, listener);
+        tracker.update(index, 51.5, -0.12, 30000, listener);
+        tracker.update(index, 51.5, -0.12, 61000, listener);
+        tracker.update(index, 51.5, -0.12, 120000, listener);
+        tracker.update(index, 51.51, -0.12, 121000, listener);
+        assertEquals(Arrays.asList("home:enter", "home:dwell", "home:exit"), transitions);
+    }
+
+    @Test
+    public void replacesEveryFenceAtOnce() throws Exception {
+        final GeofenceIndex index = new GeofenceIndex();
+        index.add(Arrays.asList(GeofenceIndex.Geofence.circle("home", 51.5, -0.12, 100)));
+        final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean done = new AtomicBoolean(false);
+        // Watches a location inside "home" while the fences are replaced,
+        // always keeping "home", so it must never see an exit.
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                GeofenceIndex.Tracker tracker = new GeofenceIndex.Tracker(0);
+                long time = 0;
+                while (!done.get()) {
+                    tracker.update(index, 51.5, -0.12, time++, new GeofenceIndex.Tracker.Listener() {
+                        @Override
+                        public void onTransition(String fenceId, String transition) {
+                            transitions.add(fenceId + ":" + transition);
+                        }
+                    });
+                }
+            }
+        });
+        watcher.start();
+        for (int i = 0; i < 20000; i++) {
+            index.replace(Arrays.asList(
+                    GeofenceIndex.Geofence.circle("home", 51.5, -0.12, 100 + i % 2),
+                    GeofenceIndex.Geofence.circle("other" + i, 52, 0, 100)
+            ));
+        }
+        done.set(true);
+        watcher.join();
+        assertEquals(Arrays.asList("home:enter"), transitions);
+        assertEquals(2, index.size());
+        assertTrue(index.has("other19999"));
+        assertFalse(index.has("other19998"));
+    }
+}
@@ -0,0 +1,148 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KalmanFilterTest {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    // The error, in metres, of an estimate against the truth.
+    private static double error(double lat, double lon, double trueLat, double trueLon) {
+        return Math.hypot(
+                (lat - trueLat) * METRES_PER_DEGREE,
+                (lon - trueLon) * METRES_PER_DEGREE * Math.cos(Math.toRadians(trueLat))
+        );
+    }
+
+    // Follows a track, one location a second, of the given speeds and turn
+    // rates, measured with Gaussian position noise of the given standard
+    // deviation. Returns the root mean square error of the raw locations and
+    // of the filter's estimates, then the filter's mean reported accuracy,
+    // ignoring the first minute while the filter settles.
+    private static double[] follow(
+            KalmanFilter filter,
+            double[] speeds,
+            double[] turns,
+            double noise,
+            boolean reportVelocity,
+            long seed
+    ) {
+        Random random = new Random(seed);
+        double lat = 51.5;
+        double lon = -0.12;
+        double bearing = 0;
+        double raw = 0;
+        double filtered = 0;
+        double accuracy = 0;
+        int count = 0;
+        for (int i = 0; i < speeds.length; i++) {
+            bearing += turns[i];
+            lat += speeds[i] * Math.cos(Math.toRadians(bearing)) / METRES_PER_DEGREE;
+            lon += speeds[i] * Math.sin(Math.toRadians(bearing)) / (METRES_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+            double measuredLat = lat + random.nextGaussian() * noise / METRES_PER_DEGREE;
+            double measuredLon = lon + random.nextGaussian() * noise / (METRES_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+            float speed = -1;
+            float measuredBearing = -1;
+            if (reportVelocity) {
+                speed = (float) Math.max(0, speeds[i] + random.nextGaussian() * 0.5);
+                measuredBearing = (float) (((bearing + random.nextGaussian() * 5) % 360 + 360) % 360);
+            }
+            filter.update(measuredLat, measuredLon, (float) noise, speed, 0.5f, measuredBearing, 5f, i * 1000L);
+            if (i >= 60) {
+                raw += square(error(measuredLat, measuredLon, lat, lon));
+                filtered += square(error(filter.getLatitude(), filter.getLongitude(), lat, lon));
+                accuracy += filter.getAccuracy();
+                count += 1;
+            }
+        }
+        return new double[]{Math.sqrt(raw / count), Math.sqrt(filtered / count), accuracy / count};
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+
+    @Test
+    public void reducesTheErrorOfAStationaryDevice() {
+        double[] speeds = new double[1800];
+        double[] turns = new double[1800];
+        double[] result = follow(new KalmanFilter(1), speeds, turns, 10, false, 1);
+        System.out.printf("Stationary: raw %.1fm, filtered %.1fm%n", result[0], result[1]);
+        // Tuned to follow a walker's changes in pace, the filter still
+        // trusts each location a good deal.
+        assertTrue("filtered " + result[1], result[1] < result[0] / 1.5);
+        double[] still = follow(new KalmanFilter(0.1), speeds, turns, 10, false, 1);
+        assertTrue("filtered " + still[1], still[1] < still[0] / 3);
+    }
+
+    @Test
+    public void reducesTheErrorOfAWindingDrive() {
+        // Two hours of driving at 10 to 20m/s, turning gently, over more
+        // than a hundred kilometres.
+        Random random = new Random(2);
+        double[] speeds = new double[7200];
+        double[] turns = new double[7200];
+        double speed = 15;
+        for (int i = 0; i < speeds.length; i++) {
+            speed = Math.max(10, Math.min(20, speed + random.nextGaussian() * 0.3));
+            speeds[i] = speed;
+            turns[i] = random.nextGaussian() * 2;
+        }
+        double[] withVelocity = follow(new KalmanFilter(3), speeds, turns, 10, true, 3);
+        double[] withoutVelocity = follow(new KalmanFilter(3), speeds, turns, 10, false, 3);
+        System.out.printf(
+                "Driving: raw %.1fm, filtered %.1fm with velocity (reported %.1fm), %.1fm without%n",
+                withVelocity[0],
+                withVelocity[1],
+                withVelocity[2],
+                withoutVelocity[1]
+        );
+        assertTrue("filtered " + withVelocity[1], withVelocity[1] < withVelocity[0] / 2);
+        assertTrue("filtered " + withoutVelocity[1], withoutVelocity[1] < withoutVelocity[0]);
+        // The reported accuracy is a fair estimate of the actual error.
+        assertTrue("reported " + withVelocity[2], withVelocity[2] > withVelocity[1] / 2);
+        assertTrue("reported " + withVelocity[2], withVelocity[2] < withVelocity[1] * 2);
+    }
+
+    @Test
+    public void estimatesVelocityFromPositionsAlone() {
+        KalmanFilter filter = new KalmanFilter(0.1);
+        Random random = new Random(4);
+        double speed = 0;
+        double bearing = 0;
+        // Walking steadily east at 1.5m/s, with 5m of noise. The estimates
+        // are noisy too, so they are averaged once the filter has settled.
+        for (int i = 0; i < 600; i++) {
+            double east = i * 1.5 + random.nextGaussian() * 5;
+            filter.update(
+                    51.5 + random.nextGaussian() * 5 / METRES_PER_DEGREE,
+                    -0.12 + east / (METRES_PER_DEGREE * Math.cos(Math.toRadians(51.5))),
+                    5,
+                    -1,
+                    -1,
+                    -1,
+                    -1,
+                    i * 1000L
+            );
+            if (i >= 300) {
+                speed += filter.getSpeed() / 300;
+                bearing += filter.getBearing() / 300;
+            }
+        }
+        assertEquals(1.5, speed, 0.2);
+        assertEquals(90, bearing, 5);
+    }
+
+    @Test
+    public void ignoresOlderLocations() {
+        KalmanFilter filter = new KalmanFilter(1);
+        filter.update(51.5, -0.12, 5, -1, -1, -1, -1, 2000);
+        filter.update(52.5, -0.12, 5, -1, -1, -1, -1, 1000);
+        assertEquals(51.5, filter.getLatitude(), 0);
+        assertEquals(-0.12, filter.getLongitude(), 0);
+    }
+}
@@ -0,0 +1,76 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocationBatcherTest {
+    @Test
+    public void releasesFullBatchesInArrivalOrder() {
+        LocationBatcher<Integer> batcher = new LocationBatcher<Integer>(3, 60000);
+        assertNull(batcher.add(1, 0));
+        assertNull(batcher.add(2, 10));
+        assertEquals(Arrays.asList(1, 2, 3), batcher.add(3, 20));
+        assertTrue(batcher.isEmpty());
+        assertNull(batcher.add(4, 30));
+        assertNull(batcher.add(5, 40));
+        assertEquals(Arrays.asList(4, 5, 6), batcher.add(6, 50));
+    }
+
+    @Test
+    public void batchSizeOfOneReleasesImmediately() {
+        LocationBatcher<Integer> batcher = new LocationBatcher<Integer>(1, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Arrays.asList(i), batcher.add(i, i * 1000));
+        }
+    }
+
+    @Test
+    public void flushIsDueOnceTheOldestLocationHasWaited() {
+        LocationBatcher<Integer> batcher = new LocationBatcher<Integer>(10, 5000);
+        assertEquals(-1, batcher.delayUntilDue(0));
+        batcher.add(1, 1000);
+        assertEquals(5000, batcher.delayUntilDue(1000));
+        batcher.add(2, 3000);
+        // The delay counts from the oldest pending location, not the newest.
+        assertEquals(3000, batcher.delayUntilDue(3000));
+        assertEquals(0, batcher.delayUntilDue(7000));
+    }
+
+    @Test
+    public void addReleasesALateBatch() {
+        LocationBatcher<Integer> batcher = new LocationBatcher<Integer>(10, 5000);
+        assertNull(batcher.add(1, 0));
+        assertNull(batcher.add(2, 4999));
+        // Arriving after the latency has expired, for example because the
+        // flush was delayed, completes the batch straight away.
+        assertEquals(Arrays.asList(1, 2, 3), batcher.add(3, 5000));
+    }
+
+    @Test
+    public void flushReleasesPartialBatches() {
+        LocationBatcher<Integer> batcher = new LocationBatcher<Integer>(10, 5000);
+        assertNull(batcher.flush());
+        batcher.add(1, 0);
+        batcher.add(2, 1);
+        ArrayList<Integer> batch = batcher.flush();
+        assertEquals(Arrays.asList(1, 2), batch);
+        assertTrue(batcher.isEmpty());
+        assertNull(batcher.flush());
+        // The next batch starts its own latency window.
+        batcher.add(3, 10000);
+        assertEquals(5000, batcher.delayUntilDue(10000));
+    }
+
+    @Test
+    public void clampsInvalidParameters() {
+        LocationBatcher<Integer> batcher = new LocationBatcher<Integer>(0, -1);
+        assertEquals(1, batcher.getSize());
+        assertEquals(0, batcher.getMaxLatency());
+    }
+}
@@ -0,0 +1,96 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationCacheTest {
+    private SharedPreferences preferences;
+
+    @Before
+    public void setUp() {
+        preferences = RuntimeEnvironment.getApplication().getSharedPreferences(
+                "LocationCacheTest",
+                Context.MODE_PRIVATE
+        );
+        preferences.edit().remove("lastLocation").apply();
+    }
+
+    private static Location at(double latitude, float accuracy, long age) {
+        Location location = new Location("test");
+        location.setLatitude(latitude);
+        location.setLongitude(-0.12);
+        location.setAccuracy(accuracy);
+        location.setAltitude(30);
+        location.setTime(System.currentTimeMillis() - age);
+        return location;
+    }
+
+    @Test
+    public void hasAFirstFixAsSoonAsTheAppRestarts() {
+        LocationCache cache = new LocationCache(preferences);
+        assertNull(cache.get());
+        Location location = at(51.5, 5, 0);
+        cache.put(location);
+        cache.flush();
+        // A restarted app reads the cache before the provider has reported
+        // anything, which is what a watcher's first stale fix waits on.
+        long start = System.nanoTime();
+        Location first = new LocationCache(preferences).get();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Restored the last location in %.0f us%n", elapsed / 1000.0);
+        assertNotNull(first);
+        assertEquals(51.5, first.getLatitude(), 0);
+        assertEquals(-0.12, first.getLongitude(), 0);
+        assertEquals(5, first.getAccuracy(), 0);
+        assertEquals(30, first.getAltitude(), 0);
+        assertEquals(location.getTime(), first.getTime());
+        assertTrue(LocationCache.getAge(first) <= LocationCache.FRESH_AGE);
+    }
+
+    @Test
+    public void throttlesWritesUntilFlushed() {
+        LocationCache cache = new LocationCache(preferences);
+        cache.put(at(51.5, 5, 0));
+        // Within the persist interval of the first, so only held in memory.
+        cache.put(at(51.6, 5, 0));
+        assertEquals(51.6, cache.get().getLatitude(), 0);
+        assertEquals(51.5, new LocationCache(preferences).get().getLatitude(), 0);
+        cache.flush();
+        assertEquals(51.6, new LocationCache(preferences).get().getLatitude(), 0);
+    }
+
+    @Test
+    public void keepsAMoreAccurateRecentLocation() {
+        LocationCache cache = new LocationCache(preferences);
+        cache.put(at(51.5, 5, 1000));
+        cache.put(at(51.6, 50, 0));
+        assertEquals(51.5, cache.get().getLatitude(), 0);
+        // Unless it is too old to be worth keeping.
+        cache = new LocationCache(preferences);
+        cache.put(at(51.5, 5, 120000));
+        cache.put(at(51.6, 50, 0));
+        assertEquals(51.6, cache.get().getLatitude(), 0);
+    }
+
+    @Test
+    public void reportsTheAgeOfOldLocations() {
+        Location old = at(51.5, 5, 2 * LocationCache.FRESH_AGE);
+        assertFalse(LocationCache.getAge(old) <= LocationCache.FRESH_AGE);
+        // Locations from a clock ahead of this one are not negative.
+        assertEquals(0, LocationCache.getAge(at(51.5, 5, -10000)));
+    }
+}
@@ -0,0 +1,144 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Location fix(long i) {
+        Location location = new Location("test");
+        location.setTime(1700000000000L + i * 1000);
+        location.setLatitude(51.5 + i * 1e-5);
+        location.setLongitude(-0.12 - i * 1e-5);
+        location.setAccuracy(5);
+        if (i % 2 == 0) {
+            location.setAltitude(30.5);
+            location.setSpeed(1.4f);
+            location.setBearing(90);
+        }
+        return location;
+    }
+
+    private static void append(LocationJournal journal, long from, long to) throws Exception {
+        for (long i = from; i < to; i++) {
+            journal.append(fix(i));
+        }
+    }
+
+    private static File[] segments(File directory) {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        LocationJournal journal = new LocationJournal(folder.getRoot());
+        append(journal, 0, 1000);
+        assertEquals(1000, journal.getNext());
+        ArrayList<Location> page = new ArrayList<Location>();
+        long cursor = journal.read(0, 300, page);
+        assertEquals(300, cursor);
+        cursor = journal.read(cursor, 1000, page);
+        assertEquals(1000, cursor);
+        assertEquals(1000, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            Location expected = fix(i);
+            Location actual = page.get(i);
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+            assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+            assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0);
+            assertEquals(expected.hasAltitude(), actual.hasAltitude());
+            assertEquals(expected.hasSpeed(), actual.hasSpeed());
+            assertEquals(expected.hasBearing(), actual.hasBearing());
+            if (expected.hasAltitude()) {
+                assertEquals(30.5, actual.getAltitude(), 0);
+                assertEquals(1.4f, actual.getSpeed(), 0);
+                assertEquals(90f, actual.getBearing(), 0);
+            }
+        }
+        journal.close();
+    }
+
+    @Test
+    public void outlivesTheProcess() throws Exception {
+        LocationJournal journal = new LocationJournal(folder.getRoot());
+        append(journal, 0, 100);
+        journal.acknowledge(40);
+        journal.close();
+        journal = new LocationJournal(folder.getRoot());
+        assertEquals(100, journal.getNext());
+        assertEquals(40, journal.getAcknowledged());
+        // Reading from before the acknowledged cursor starts at it.
+        ArrayList<Location> page = new ArrayList<Location>();
+        assertEquals(100, journal.read(0, 1000, page));
+        assertEquals(60, page.size());
+        assertEquals(fix(40).getTime(), page.get(0).getTime());
+        append(journal, 100, 110);
+        assertEquals(110, journal.getNext());
+        journal.close();
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() throws Exception {
+        LocationJournal journal = new LocationJournal(folder.getRoot());
+        // Three segments' worth.
+        append(journal, 0, 40000);
+        assertEquals(3, segments(folder.getRoot()).length);
+        journal.acknowledge(20000);
+        assertEquals(2, segments(folder.getRoot()).length);
+        ArrayList<Location> page = new ArrayList<Location>();
+        assertEquals(40000, journal.read(0, 100000, page));
+        assertEquals(20000, page.size());
+        assertEquals(fix(20000).getTime(), page.get(0).getTime());
+        // The head segment is kept, so numbering carries on.
+        journal.acknowledge(40000);
+        assertEquals(1, segments(folder.getRoot()).length);
+        journal.close();
+        journal = new LocationJournal(folder.getRoot());
+        assertEquals(40000, journal.getNext());
+        journal.close();
+    }
+
+    @Test
+    public void ignoresAPartiallyWrittenRecord() throws Exception {
+        LocationJournal journal = new LocationJournal(folder.getRoot());
+        append(journal, 0, 10);
+        journal.close();
+        // As if the process died part way through an append.
+        FileOutputStream out = new FileOutputStream(segments(folder.getRoot())[0], true);
+        out.write(new byte[LocationJournal.RECORD_SIZE / 2]);
+        out.close();
+        journal = new LocationJournal(folder.getRoot());
+        assertEquals(10, journal.getNext());
+        append(journal, 10, 12);
+        ArrayList<Location> page = new ArrayList<Location>();
+        assertEquals(12, journal.read(0, 100, page));
+        assertEquals(12, page.size());
+        assertEquals(fix(11).getTime(), page.get(11).getTime());
+        assertFalse(page.get(11).hasAltitude());
+        assertTrue(page.get(10).hasAltitude());
+        journal.close();
+    }
+}
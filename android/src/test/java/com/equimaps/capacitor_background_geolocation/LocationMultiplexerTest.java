@@ -0,0 +1,234 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationMultiplexerTest {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    // Records the requests made of it.
+    private static class FakeSource implements LocationMultiplexer.Source {
+        final ArrayList<String> requests = new ArrayList<String>();
+
+        @Override
+        public void requestUpdates(
+                long interval,
+                long fastestInterval,
+                int priority,
+                long maxWaitTime,
+                float smallestDisplacement
+        ) {
+            requests.add(interval + "," + fastestInterval + "," + priority + "," + maxWaitTime + "," + smallestDisplacement);
+        }
+
+        @Override
+        public void removeUpdates() {
+            requests.add("remove");
+        }
+    }
+
+    private static class Watcher extends LocationMultiplexer.Subscription {
+        final ArrayList<Long> received = new ArrayList<Long>();
+        int rejected = 0;
+
+        Watcher(long interval, int priority, float distanceFilter) {
+            this.interval = interval;
+            this.fastestInterval = interval / 6;
+            this.priority = priority;
+            this.distanceFilter = distanceFilter;
+        }
+
+        @Override
+        void onLocations(ArrayList<Location> locations) {
+            for (Location location : locations) {
+                received.add(location.getElapsedRealtimeNanos() / 1000000);
+            }
+        }
+
+        @Override
+        void onRejected(int count) {
+            rejected += count;
+        }
+    }
+
+    // A location some metres north of the origin, at a time in milliseconds.
+    private static Location at(double north, long time) {
+        Location location = new Location("test");
+        location.setLatitude(51.5 + north / METRES_PER_DEGREE);
+        location.setLongitude(-0.12);
+        location.setElapsedRealtimeNanos(time * 1000000);
+        return location;
+    }
+
+    @Test
+    public void requestsTheStrictestParameters() {
+        FakeSource source = new FakeSource();
+        LocationMultiplexer multiplexer = new LocationMultiplexer(source);
+        Watcher slow = new Watcher(60000, 102, 100);
+        Watcher fast = new Watcher(1000, 100, 0);
+        Watcher loose = new Watcher(120000, 104, 500);
+        multiplexer.add(slow);
+        multiplexer.add(fast);
+        // Already satisfied, so not requested again.
+        multiplexer.add(loose);
+        multiplexer.remove(fast);
+        multiplexer.remove(loose);
+        multiplexer.remove(slow);
+        assertEquals(
+                Arrays.asList(
+                        "60000,10000,102,60000,100.0",
+                        "1000,166,100,1000,0.0",
+                        "60000,10000,102,60000,100.0",
+                        "remove"
+                ),
+                source.requests
+        );
+    }
+
+    @Test
+    public void filtersEachWatcherSeparately() {
+        LocationMultiplexer multiplexer = new LocationMultiplexer(new FakeSource());
+        Watcher everySecond = new Watcher(1000, 100, 0);
+        Watcher everyFiveSeconds = new Watcher(5000, 100, 0);
+        Watcher everyTenMetres = new Watcher(0, 100, 10);
+        multiplexer.add(everySecond);
+        multiplexer.add(everyFiveSeconds);
+        multiplexer.add(everyTenMetres);
+        // Walking at 3m/s, with the provider's usual jitter.
+        for (int i = 0; i < 20; i++) {
+            multiplexer.dispatch(Arrays.asList(at(i * 3, i * 1000 + (i % 2) * 50)));
+        }
+        assertEquals(20, everySecond.received.size());
+        assertEquals(0, everySecond.rejected);
+        assertEquals(Arrays.asList(0L, 5050L, 10000L, 15050L), everyFiveSeconds.received);
+        assertEquals(16, everyFiveSeconds.rejected);
+        // Every fourth location, 12 metres on.
+        assertEquals(5, everyTenMetres.received.size());
+        assertEquals(15, everyTenMetres.rejected);
+    }
+
+    @Test
+    public void neverUndercutsTheMinimumInterval() {
+        LocationMultiplexer multiplexer = new LocationMultiplexer(new FakeSource());
+        Watcher interval = new Watcher(30000, 100, 0);
+        Watcher minInterval = new Watcher(30000, 100, 0);
+        minInterval.minInterval = 30000;
+        multiplexer.add(interval);
+        multiplexer.add(minInterval);
+        // Every 30 seconds, give or take.
+        for (long time : new long[] {0, 27500, 30000, 57000, 60000, 89900, 90100}) {
+            multiplexer.dispatch(Arrays.asList(at(0, time)));
+        }
+        assertEquals(Arrays.asList(0L, 27500L, 57000L, 89900L), interval.received);
+        assertEquals(Arrays.asList(0L, 30000L, 60000L, 90100L), minInterval.received);
+    }
+
+    @Test
+    public void dispatchesBatchesInOrder() {
+        LocationMultiplexer multiplexer = new LocationMultiplexer(new FakeSource());
+        Watcher watcher = new Watcher(2000, 100, 0);
+        multiplexer.add(watcher);
+        ArrayList<Location> batch = new ArrayList<Location>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(at(0, i * 1000));
+        }
+        multiplexer.dispatch(batch);
+        assertEquals(Arrays.asList(0L, 2000L, 4000L, 6000L, 8000L), watcher.received);
+        assertEquals(5, watcher.rejected);
+    }
+
+    @Test
+    public void reportsEachLocationsSinksOnce() {
+        final int journal = 1;
+        final int upload = 2;
+        LocationMultiplexer multiplexer = new LocationMultiplexer(new FakeSource());
+        Watcher everyTenMetres = new Watcher(0, 100, 10);
+        everyTenMetres.sinks = journal | upload;
+        Watcher everything = new Watcher(0, 100, 0);
+        everything.sinks = journal;
+        Watcher neither = new Watcher(0, 100, 0);
+        multiplexer.add(everyTenMetres);
+        multiplexer.add(everything);
+        multiplexer.add(neither);
+        // One batch, as the provider delivers with a max wait time. The
+        // first subscription only accepts the fourth location, and must not
+        // stop the second reporting the others.
+        int[] sinks = multiplexer.dispatch(Arrays.asList(
+                at(0, 0),
+                at(2, 1000),
+                at(4, 2000),
+                at(12, 3000),
+                at(14, 4000)
+        ));
+        assertEquals(Arrays.asList(0L, 3000L), everyTenMetres.received);
+        assertEquals(5, everything.received.size());
+        assertEquals(5, sinks.length);
+        int[] expected = {journal | upload, journal, journal, journal | upload, journal};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], sinks[i]);
+        }
+        // Without sinks, nothing is allocated for them.
+        multiplexer.remove(everyTenMetres);
+        multiplexer.remove(everything);
+        assertNull(multiplexer.dispatch(Arrays.asList(at(20, 5000))));
+    }
+
+    @Test
+    public void movesTheSubscriptionToANewSource() {
+        FakeSource first = new FakeSource();
+        FakeSource second = new FakeSource();
+        LocationMultiplexer multiplexer = new LocationMultiplexer(first);
+        multiplexer.add(new Watcher(1000, 100, 0));
+        multiplexer.setSource(second);
+        assertEquals(Arrays.asList("1000,166,100,1000,0.0", "remove"), first.requests);
+        assertEquals(Arrays.asList("1000,166,100,1000,0.0"), second.requests);
+        multiplexer.clear();
+        assertTrue(second.requests.contains("remove"));
+    }
+
+    @Test
+    public void addsAndRemovesWhileDispatching() throws Exception {
+        final LocationMultiplexer multiplexer = new LocationMultiplexer(new FakeSource());
+        final Watcher other = new Watcher(1000, 100, 0);
+        final boolean[] finished = new boolean[1];
+        // Stands in for a watcher whose pipeline is slow, for example
+        // writing to disk, while the plugin adds and removes watchers.
+        Watcher slow = new Watcher(1000, 100, 0) {
+            @Override
+            void onLocations(ArrayList<Location> locations) {
+                Thread binder = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        multiplexer.add(other);
+                        multiplexer.remove(other);
+                        finished[0] = true;
+                    }
+                });
+                binder.start();
+                try {
+                    binder.join(5000);
+                } catch (InterruptedException exception) {
+                    throw new RuntimeException(exception);
+                }
+                super.onLocations(locations);
+            }
+        };
+        multiplexer.add(slow);
+        multiplexer.dispatch(Arrays.asList(at(0, 0)));
+        assertTrue(finished[0]);
+        assertEquals(1, slow.received.size());
+        // The snapshot taken for the dispatch did not include it.
+        assertTrue(other.received.isEmpty());
+    }
+}
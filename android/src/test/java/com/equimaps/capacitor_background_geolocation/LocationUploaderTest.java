@@ -0,0 +1,272 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationUploaderTest {
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Stands in for the upload server. Each request is answered with the
+    // next scripted status, or 200 once they run out, and the times of the
+    // locations in accepted batches are recorded.
+    private static class Server implements HttpHandler {
+        final HttpServer server;
+        private final ArrayList<Integer> script = new ArrayList<Integer>();
+        final List<Long> accepted = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> answered = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> methods = Collections.synchronizedList(new ArrayList<String>());
+        volatile String token = null;
+
+        Server() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            server.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/locations";
+        }
+
+        synchronized void script(Integer... statuses) {
+            script.addAll(Arrays.asList(statuses));
+        }
+
+        private synchronized int next() {
+            return script.isEmpty() ? 200 : script.remove(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            methods.add(exchange.getRequestMethod());
+            token = exchange.getRequestHeaders().getFirst("Authorization");
+            ArrayList<Long> times = new ArrayList<Long>();
+            try {
+                assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                JSONArray locations = new JSONObject(read(new GZIPInputStream(exchange.getRequestBody())))
+                        .getJSONArray("locations");
+                for (int i = 0; i < locations.length(); i++) {
+                    times.add(locations.getJSONObject(i).getLong("time"));
+                }
+            } catch (JSONException | IOException exception) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            int status = next();
+            if (status == 200) {
+                accepted.addAll(times);
+                batches.add(times.size());
+            }
+            answered.add(status);
+            if (status >= 300 && status < 400) {
+                exchange.getResponseHeaders().add("Location", getUrl() + "/elsewhere");
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+    }
+
+    private Server server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private LocationUploader.Config config(int batchSize, long maxLatency) throws JSONException {
+        JSONObject options = new JSONObject();
+        options.put("url", server.getUrl());
+        options.put("batchSize", batchSize);
+        options.put("maxLatency", maxLatency);
+        options.put("headers", new JSONObject().put("Authorization", "Bearer token"));
+        return LocationUploader.Config.from(options);
+    }
+
+    private static void append(LocationUploader uploader, long from, long to) {
+        for (long i = from; i < to; i++) {
+            Location location = new Location("test");
+            location.setTime(i);
+            location.setLatitude(51.5);
+            location.setLongitude(-0.12);
+            uploader.append(location);
+        }
+    }
+
+    private static List<Long> range(long from, long to) {
+        ArrayList<Long> times = new ArrayList<Long>();
+        for (long i = from; i < to; i++) {
+            times.add(i);
+        }
+        return times;
+    }
+
+    // Waits for the server to have accepted this many locations.
+    private void awaitAccepted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (server.accepted.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Accepted " + server.accepted + " and answered " + server.answered);
+            }
+            Thread.sleep(10);
+        }
+        // Anything more would be a duplicate.
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void uploadsQueuedLocationsInBatches() throws Exception {
+        LocationJournal queue = new LocationJournal(folder.newFolder());
+        LocationUploader uploader = new LocationUploader(queue, 10);
+        // Queued before uploading is configured.
+        append(uploader, 0, 25);
+        uploader.configure(config(10, 50));
+        awaitAccepted(25);
+        assertEquals(range(0, 25), server.accepted);
+        assertEquals(Arrays.asList(10, 10, 5), server.batches);
+        assertEquals("Bearer token", server.token);
+        assertEquals(queue.getNext(), queue.getAcknowledged());
+        uploader.shutdown();
+        queue.close();
+    }
+
+    @Test
+    public void retriesServerErrors() throws Exception {
+        server.script(503, 500, 503);
+        LocationJournal queue = new LocationJournal(folder.newFolder());
+        LocationUploader uploader = new LocationUploader(queue, 10);
+        uploader.configure(config(10, 0));
+        append(uploader, 0, 5);
+        awaitAccepted(5);
+        assertEquals(range(0, 5), server.accepted);
+        assertEquals(Arrays.asList(503, 500, 503, 200), server.answered.subList(0, 4));
+        uploader.shutdown();
+        queue.close();
+    }
+
+    @Test
+    public void discardsRejectedAndRedirectedBatches() throws Exception {
+        server.script(400, 302);
+        LocationJournal queue = new LocationJournal(folder.newFolder());
+        LocationUploader uploader = new LocationUploader(queue, 10);
+        append(uploader, 0, 15);
+        uploader.configure(config(5, 0));
+        awaitAccepted(5);
+        // Neither is retried, and the redirect is not followed.
+        assertEquals(range(10, 15), server.accepted);
+        assertEquals(Arrays.asList(400, 302, 200), server.answered);
+        assertEquals(Arrays.asList("POST", "POST", "POST"), server.methods);
+        assertEquals(queue.getNext(), queue.getAcknowledged());
+        uploader.shutdown();
+        queue.close();
+    }
+
+    @Test
+    public void keepsOrderThroughFailures() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            server.script(i % 3 == 0 ? 503 : 200);
+        }
+        LocationJournal queue = new LocationJournal(folder.newFolder());
+        LocationUploader uploader = new LocationUploader(queue, 5);
+        uploader.configure(config(7, 20));
+        // Locations keep arriving while uploads fail and are retried.
+        for (int i = 0; i < 20; i++) {
+            append(uploader, i * 10, i * 10 + 10);
+            Thread.sleep(5);
+        }
+        awaitAccepted(200);
+        assertEquals(range(0, 200), server.accepted);
+        assertTrue(server.answered.contains(503));
+        uploader.shutdown();
+        queue.close();
+    }
+
+    @Test
+    public void resumesAfterARestart() throws Exception {
+        File directory = folder.newFolder();
+        LocationJournal queue = new LocationJournal(directory);
+        LocationUploader uploader = new LocationUploader(queue, 60000);
+        server.script(503);
+        append(uploader, 0, 8);
+        uploader.configure(config(10, 0));
+        // Backing off when the process dies.
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (server.answered.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        uploader.shutdown();
+        queue.close();
+        queue = new LocationJournal(directory);
+        uploader = new LocationUploader(queue, 10);
+        uploader.configure(config(10, 0));
+        awaitAccepted(8);
+        assertEquals(range(0, 8), server.accepted);
+        assertEquals(Arrays.asList(503, 200), server.answered);
+        uploader.shutdown();
+        queue.close();
+    }
+
+    @Test
+    public void rejectsUrlsItCannotPostTo() throws Exception {
+        for (String url : new String[] {"not a url", "ftp://example.com/locations", "locations"}) {
+            try {
+                LocationUploader.Config.from(new JSONObject().put("url", url));
+                fail(url);
+            } catch (JSONException expected) {}
+        }
+        LocationUploader.Config.from(new JSONObject().put("url", "https://example.com/locations"));
+    }
+}
@@ -0,0 +1,121 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MotionGateTest {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final long TIMEOUT = MotionGate.STATIONARY_TIMEOUT;
+
+    // Feeds a location some metres north of the origin.
+    private static MotionGate.State feed(MotionGate gate, double north, float speed, long time) {
+        return gate.onLocation(51.5 + north / METRES_PER_DEGREE, -0.12, 10, speed, time);
+    }
+
+    // Feeds still locations from the given time for the stationary timeout,
+    // returning the first change of state, if any.
+    private static MotionGate.State stayStill(MotionGate gate, long start) {
+        MotionGate.State change = null;
+        for (long t = start; t <= start + TIMEOUT && change == null; t += 1000) {
+            change = feed(gate, 0, 0, t);
+        }
+        return change;
+    }
+
+    @Test
+    public void neverClosesWithoutAWayToWake() {
+        MotionGate gate = new MotionGate();
+        assertTrue(!gate.canWake());
+        assertNull(stayStill(gate, 0));
+        assertNull(gate.onActivity(true));
+        assertEquals(MotionGate.State.MOVING, gate.getState());
+    }
+
+    @Test
+    public void trustsActivityTransitions() {
+        MotionGate gate = new MotionGate();
+        gate.setActivityRecognition(true);
+        assertTrue(gate.canWake());
+        assertEquals(MotionGate.State.STATIONARY, gate.onActivity(true));
+        // Repeated transitions are not changes.
+        assertNull(gate.onActivity(true));
+        assertEquals(MotionGate.State.MOVING, gate.onActivity(false));
+        assertNull(gate.onActivity(false));
+    }
+
+    @Test
+    public void closesOnStillLocationsAndOpensOnSignificantMotion() {
+        MotionGate gate = new MotionGate();
+        gate.setSignificantMotion(true);
+        assertEquals(MotionGate.State.STATIONARY, stayStill(gate, 0));
+        assertNull(gate.onActivity(true));
+        assertEquals(MotionGate.State.MOVING, gate.onSignificantMotion());
+        assertNull(gate.onSignificantMotion());
+        // Stillness is judged afresh, so the gate does not close again until
+        // a whole timeout has passed.
+        long t = TIMEOUT + 60000;
+        for (long end = t + TIMEOUT - 1000; t < end; t += 1000) {
+            assertNull(feed(gate, 0, 0, t));
+        }
+        assertEquals(MotionGate.State.STATIONARY, feed(gate, 0, 0, t + 1000));
+    }
+
+    @Test
+    public void hysteresisHoldsTheGateClosed() {
+        MotionGate gate = new MotionGate();
+        gate.setSignificantMotion(true);
+        assertEquals(MotionGate.State.STATIONARY, stayStill(gate, 0));
+        long t = TIMEOUT + 1000;
+        // Drifting between the still and moving thresholds.
+        for (int i = 0; i < 600; i++, t += 1000) {
+            assertNull(feed(gate, 40, 1.0f, t));
+        }
+        // Isolated spikes of speed.
+        for (int i = 0; i < 10; i++, t += 2000) {
+            assertNull(feed(gate, 0, 5f, t));
+            assertNull(feed(gate, 0, 0f, t + 1000));
+        }
+        assertEquals(MotionGate.State.STATIONARY, gate.getState());
+        assertNull(feed(gate, 0, 2f, t));
+        assertEquals(MotionGate.State.MOVING, feed(gate, 0, 2f, t + 1000));
+    }
+
+    @Test
+    public void replaysACommute() {
+        // Walk for ten minutes, wait at a stop for ten, then ride a bus. The
+        // significant motion sensor fires as the bus pulls away.
+        MotionGate gate = new MotionGate();
+        gate.setSignificantMotion(true);
+        Random random = new Random(1);
+        ArrayList<MotionGate.State> states = new ArrayList<MotionGate.State>();
+        ArrayList<Long> times = new ArrayList<Long>();
+        double north = 0;
+        for (long t = 0; t < 1800000; t += 1000) {
+            MotionGate.State change;
+            if (t == 1200000) {
+                change = gate.onSignificantMotion();
+            } else {
+                float speed = t < 600000 ? 1.4f : t < 1200000 ? 0.2f * (float) random.nextDouble() : 8f;
+                if (speed > 1) {
+                    north += speed;
+                }
+                change = feed(gate, north + random.nextGaussian() * 4, speed, t);
+            }
+            if (change != null) {
+                states.add(change);
+                times.add(t);
+            }
+        }
+        assertEquals(2, states.size());
+        assertEquals(MotionGate.State.STATIONARY, states.get(0));
+        assertTrue(times.get(0) >= 600000 + TIMEOUT - 1000 && times.get(0) <= 600000 + TIMEOUT + 1000);
+        assertEquals(MotionGate.State.MOVING, states.get(1));
+        assertEquals(1200000, (long) times.get(1));
+    }
+}
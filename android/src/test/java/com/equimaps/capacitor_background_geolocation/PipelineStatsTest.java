@@ -0,0 +1,115 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStatsTest {
+    @Test
+    public void histogramPercentilesAreWithinAFactorOfTwo() {
+        PipelineStats.Histogram histogram = new PipelineStats.Histogram();
+        assertEquals(0, histogram.percentile(0.5));
+        // 1 to 1000 microseconds.
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.percentile(0.5);
+        long p99 = histogram.percentile(0.99);
+        assertTrue("p50 " + p50, p50 >= 500 && p50 <= 1000);
+        assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.percentile(1));
+    }
+
+    @Test
+    public void tracksOutages() {
+        PipelineStats stats = new PipelineStats();
+        stats.setAvailable(false, 1000);
+        // Repeated reports of the same outage count once.
+        stats.setAvailable(false, 2000);
+        stats.setAvailable(true, 4000);
+        stats.setAvailable(true, 5000);
+        assertEquals(1, stats.outages.get());
+        assertEquals(3000, stats.outageTime.get());
+    }
+
+    @Test
+    public void removingAReplacedWatcherKeepsTheReplacement() {
+        PipelineStats stats = new PipelineStats();
+        PipelineStats.Counters previous = stats.addWatcher("a");
+        PipelineStats.Counters replacement = stats.addWatcher("a");
+        stats.removeWatcher("a", previous);
+        assertTrue(stats.getWatcher("a") == replacement);
+        stats.removeWatcher("a", replacement);
+        assertTrue(stats.getWatcher("a") == null);
+    }
+
+    @Test
+    public void replacingWatchersConcurrentlyKeepsEveryReplacement() throws Exception {
+        final PipelineStats stats = new PipelineStats();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final String id = "watcher" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PipelineStats.Counters current = stats.addWatcher(id);
+                    for (int j = 0; j < 100000; j++) {
+                        // As addWatcher does: register the replacement, then
+                        // discard the previous watcher.
+                        PipelineStats.Counters replacement = stats.addWatcher(id);
+                        stats.removeWatcher(id, current);
+                        if (stats.getWatcher(id) != replacement) {
+                            failures.incrementAndGet();
+                        }
+                        current = replacement;
+                    }
+                    stats.removeWatcher(id, current);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        for (int i = 0; i < threads.length; i++) {
+            assertTrue(stats.getWatcher("watcher" + i) == null);
+        }
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        PipelineStats stats = new PipelineStats();
+        PipelineStats.Counters counters = stats.addWatcher("a");
+        long id = Thread.currentThread().getId();
+        // Warm up, so that nothing is allocated by class loading or the
+        // compiler on the current thread while measuring.
+        record(stats, counters, 100000);
+        long before = threads.getThreadAllocatedBytes(id);
+        record(stats, counters, 1000000);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // Reading the counter itself may allocate a little, but nothing
+        // proportional to the number of samples.
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void record(PipelineStats stats, PipelineStats.Counters counters, int count) {
+        for (int i = 0; i < count; i++) {
+            stats.providerLag.record(i * 1000L);
+            stats.dispatchLatency.record(i * 10L);
+            counters.delivered.incrementAndGet();
+            counters.filtered.addAndGet(2);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReplaySourceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Records when each location is emitted, relative to the replay's start.
+    private static class Recorder implements ReplaySource.Sink {
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<Long> emitted = new ArrayList<Long>();
+        final ArrayList<Location> locations = new ArrayList<Location>();
+
+        @Override
+        public void onLocations(ArrayList<Location> locations) {
+            for (Location location : locations) {
+                emitted.add(SystemClock.elapsedRealtime() - start);
+                this.locations.add(location);
+            }
+        }
+    }
+
+    private File write(String text) throws IOException {
+        File file = folder.newFile();
+        FileWriter writer = new FileWriter(file);
+        writer.write(text);
+        writer.close();
+        return file;
+    }
+
+    private static void idleFor(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+    }
+
+    @Test
+    public void parsesCsv() throws Exception {
+        ReplaySource.CsvTrack track = new ReplaySource.CsvTrack(write(
+                "time,latitude,longitude,accuracy,altitude,speed,bearing\n" +
+                "1700000000000,51.5,-0.12,5,30,1.5,90\n" +
+                "1700000001000, 51.6 , -0.13,,,2\n" +
+                "not,a,location\n" +
+                "1700000002000,51.7\n" +
+                "1700000003000,51.8,-0.14\n"
+        ));
+        Location first = track.next();
+        assertEquals(1700000000000L, first.getTime());
+        assertEquals(51.5, first.getLatitude(), 0);
+        assertEquals(-0.12, first.getLongitude(), 0);
+        assertEquals(5, first.getAccuracy(), 0);
+        assertEquals(30, first.getAltitude(), 0);
+        assertEquals(1.5f, first.getSpeed(), 0);
+        assertEquals(90, first.getBearing(), 0);
+        // Empty fields are missing, and surrounding spaces are ignored.
+        Location second = track.next();
+        assertEquals(51.6, second.getLatitude(), 0);
+        assertFalse(second.hasAccuracy());
+        assertFalse(second.hasAltitude());
+        assertEquals(2, second.getSpeed(), 0);
+        assertFalse(second.hasBearing());
+        // Lines that are not locations are skipped.
+        Location third = track.next();
+        assertEquals(1700000003000L, third.getTime());
+        assertFalse(third.hasAccuracy());
+        assertNull(track.next());
+        track.close();
+    }
+
+    @Test
+    public void parsesGpx() throws Exception {
+        ReplaySource.GpxTrack track = new ReplaySource.GpxTrack(write(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<gpx version=\"1.1\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n" +
+                "<wpt lat=\"51.4\" lon=\"-0.1\"><time>2023-11-14T22:13:10Z</time></wpt>\n" +
+                "<trk><name>Walk</name><trkseg>\n" +
+                "<trkpt lat=\"51.5\" lon=\"-0.12\"><ele>30.5</ele><time>2023-11-14T22:13:20Z</time></trkpt>\n" +
+                "<trkpt lat=\"51.6\" lon=\"-0.13\"><time>2023-11-14T22:13:21.25Z</time></trkpt>\n" +
+                "</trkseg></trk>\n" +
+                "</gpx>\n"
+        ));
+        Location waypoint = track.next();
+        assertEquals(51.4, waypoint.getLatitude(), 0);
+        assertEquals(1699999990000L, waypoint.getTime());
+        Location first = track.next();
+        assertEquals(51.5, first.getLatitude(), 0);
+        assertEquals(-0.12, first.getLongitude(), 0);
+        assertEquals(30.5, first.getAltitude(), 0);
+        assertEquals(1700000000000L, first.getTime());
+        // Fractions of a second are kept to the millisecond.
+        Location second = track.next();
+        assertFalse(second.hasAltitude());
+        assertEquals(1700000001250L, second.getTime());
+        assertNull(track.next());
+        track.close();
+    }
+
+    @Test
+    public void pacesLocationsByTheSpeedFactor() throws Exception {
+        File file = write(
+                "0,51.5,-0.12\n" +
+                "1000,51.5,-0.12\n" +
+                "2000,51.5,-0.12\n" +
+                "2000,51.5,-0.12\n" +
+                "6000,51.5,-0.12\n"
+        );
+        Recorder recorder = new Recorder();
+        ReplaySource source = new ReplaySource(
+                new Handler(Looper.getMainLooper()),
+                new ReplaySource.CsvTrack(file),
+                4,
+                recorder
+        );
+        source.requestUpdates(1000, 1000, 100, 1000, 0);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(Arrays.asList(0L), recorder.emitted);
+        idleFor(249);
+        assertEquals(1, recorder.emitted.size());
+        idleFor(1);
+        assertEquals(Arrays.asList(0L, 250L), recorder.emitted);
+        idleFor(2000);
+        // Locations due together are emitted together.
+        assertEquals(Arrays.asList(0L, 250L, 500L, 500L, 1500L), recorder.emitted);
+        // Each is restamped with the time it was emitted, and marked.
+        for (Location location : recorder.locations) {
+            assertTrue(location.getTime() > 1000000000000L);
+            if (Build.VERSION.SDK_INT >= 31) {
+                assertTrue(location.isFromMockProvider());
+            }
+        }
+        source.close();
+    }
+
+    @Test
+    public void resumesWithoutCatchingUp() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            csv.append(i * 1000).append(",51.5,-0.12\n");
+        }
+        Recorder recorder = new Recorder();
+        ReplaySource source = new ReplaySource(
+                new Handler(Looper.getMainLooper()),
+                new ReplaySource.CsvTrack(write(csv.toString())),
+                1,
+                recorder
+        );
+        source.requestUpdates(1000, 1000, 100, 1000, 0);
+        idleFor(2500);
+        assertEquals(Arrays.asList(0L, 1000L, 2000L), recorder.emitted);
+        // Paused, as when every watcher is removed.
+        source.removeUpdates();
+        idleFor(10000);
+        assertEquals(3, recorder.emitted.size());
+        // The rest of the track follows on from the time it resumed, rather
+        // than arriving at once.
+        source.requestUpdates(1000, 1000, 100, 1000, 0);
+        idleFor(1500);
+        assertEquals(Arrays.asList(0L, 1000L, 2000L, 12500L, 13500L), recorder.emitted);
+        source.close();
+        idleFor(10000);
+        assertEquals(5, recorder.emitted.size());
+    }
+}
@@ -0,0 +1,258 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class SessionRecorderTest {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // A day of locations, one a second, alternating between standing still,
+    // walking and driving every hour, with GPS noise. Some locations lack
+    // the optional fields.
+    private static ArrayList<Location> day() {
+        Random random = new Random(1);
+        ArrayList<Location> track = new ArrayList<Location>();
+        double lat = 51.5;
+        double lon = -0.12;
+        double bearing = 0;
+        double altitude = 30;
+        long time = 1700000000000L;
+        for (int i = 0; i < 86400; i++) {
+            double speed = (i / 3600) % 3 == 0 ? 0.3 : (i / 3600) % 3 == 1 ? 1.5 : 13;
+            bearing = (bearing + random.nextGaussian() * 5 + 360) % 360;
+            lat += (speed * Math.cos(Math.toRadians(bearing)) + random.nextGaussian() * 0.2) / METRES_PER_DEGREE;
+            lon += (speed * Math.sin(Math.toRadians(bearing)) + random.nextGaussian() * 0.2) / (METRES_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+            altitude += random.nextGaussian() * 0.3;
+            time += 1000 + random.nextInt(20) - 10;
+            Location location = new Location("test");
+            location.setTime(time);
+            location.setLatitude(lat);
+            location.setLongitude(lon);
+            location.setAccuracy((float) (3 + random.nextDouble() * 15));
+            if (i % 100 != 0) {
+                location.setAltitude(altitude);
+                location.setSpeed((float) speed);
+                location.setBearing((float) bearing);
+            }
+            track.add(location);
+        }
+        return track;
+    }
+
+    private static void record(File file, ArrayList<Location> track) throws Exception {
+        SessionRecorder recorder = new SessionRecorder(file);
+        for (Location location : track) {
+            recorder.append(location);
+        }
+        recorder.close();
+        assertEquals(track.size(), recorder.getCount());
+        assertEquals(file.length(), recorder.getSize());
+    }
+
+    @Test
+    public void roundTripsADay() throws Exception {
+        ArrayList<Location> track = day();
+        File file = folder.newFile();
+        long start = System.nanoTime();
+        record(file, track);
+        long encoding = System.nanoTime() - start;
+        start = System.nanoTime();
+        SessionRecorder.Reader reader = new SessionRecorder.Reader(file);
+        int i = 0;
+        try {
+            while (reader.next()) {
+                Location location = track.get(i++);
+                assertEquals(location.getTime(), reader.time);
+                assertEquals(location.getLatitude(), reader.latitude, 0.6e-7);
+                assertEquals(location.getLongitude(), reader.longitude, 0.6e-7);
+                assertEquals(location.getAccuracy(), reader.accuracy, 0.06);
+                if (location.hasAltitude()) {
+                    assertEquals(location.getAltitude(), reader.altitude, 0.06);
+                    assertEquals(location.getSpeed(), reader.speed, 0.006);
+                    // Bearings wrap round, so 359.98 may come back as 0.
+                    double bearing = Math.abs(location.getBearing() - reader.bearing);
+                    assertEquals(0, Math.min(bearing, 360 - bearing), 0.06);
+                } else {
+                    assertTrue(Double.isNaN(reader.altitude));
+                    assertTrue(Float.isNaN(reader.speed));
+                    assertTrue(Float.isNaN(reader.bearing));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long decoding = System.nanoTime() - start;
+        assertEquals(track.size(), i);
+        double bytesPerFix = file.length() / (double) track.size();
+        System.out.printf(
+                "Recorded %d fixes in %d bytes, %.2f bytes a fix, encoding %.0f ns and decoding %.0f ns a fix%n",
+                track.size(),
+                file.length(),
+                bytesPerFix,
+                encoding / (double) track.size(),
+                decoding / (double) track.size()
+        );
+        // Against LocationJournal's 52 byte records.
+        assertTrue("bytes per fix " + bytesPerFix, bytesPerFix < 16);
+    }
+
+    @Test
+    public void readsNoFurtherThanTheLimit() throws Exception {
+        ArrayList<Location> track = new ArrayList<Location>(day().subList(0, SessionRecorder.BLOCK_SIZE * 3));
+        // Close enough together that only full blocks are written.
+        for (int i = 0; i < track.size(); i++) {
+            track.get(i).setTime(i * 10L);
+        }
+        File file = folder.newFile();
+        record(file, track);
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            // Part way into the third block.
+            SessionRecorder.Reader reader = new SessionRecorder.Reader(channel, file.length() - 10);
+            int fixes = 0;
+            while (reader.next()) {
+                fixes += 1;
+            }
+            assertEquals(SessionRecorder.BLOCK_SIZE * 2, fixes);
+            long end = reader.getEnd();
+            reader.close();
+            // The reader leaves a shared channel open.
+            assertTrue(channel.isOpen());
+            reader = new SessionRecorder.Reader(channel, end);
+            fixes = 0;
+            while (reader.next()) {
+                fixes += 1;
+            }
+            assertEquals(SessionRecorder.BLOCK_SIZE * 2, fixes);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void aNewSessionLeavesOpenReadersAlone() throws Exception {
+        ArrayList<Location> track = day();
+        File file = folder.newFile();
+        record(file, new ArrayList<Location>(track.subList(0, 5000)));
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            SessionRecorder replacement = new SessionRecorder(file);
+            for (Location location : track.subList(5000, 6000)) {
+                replacement.append(location);
+            }
+            replacement.close();
+            SessionRecorder.Reader reader = new SessionRecorder.Reader(channel, channel.size());
+            int fixes = 0;
+            while (reader.next()) {
+                assertEquals(track.get(fixes++).getTime(), reader.time);
+            }
+            assertEquals(5000, fixes);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void exportsWhileRecordingAreConsistent() throws Exception {
+        final File file = folder.newFile();
+        final SessionRecorder recorder = new SessionRecorder(file);
+        final ArrayList<Location> track = day();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        // A minute apart, so that every fix writes a block.
+        Thread recording = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000 && !stop.get(); i++) {
+                        Location location = track.get(i % track.size());
+                        location.setTime(i * SessionRecorder.BLOCK_AGE);
+                        recorder.append(location);
+                    }
+                } catch (Exception exception) {
+                    throw new RuntimeException(exception);
+                }
+            }
+        });
+        recording.start();
+        try {
+            for (int i = 0; i < 5 || recording.isAlive(); i++) {
+                File geojson = new File(folder.getRoot(), "export.geojson");
+                long fixes = SessionRecorder.export(file, geojson, "geojson");
+                String text = new String(Files.readAllBytes(geojson.toPath()), StandardCharsets.UTF_8);
+                String coordinates = text.substring(0, text.indexOf("\"properties\""));
+                String times = text.substring(text.indexOf("\"coordTimes\""));
+                assertEquals(fixes, count(coordinates, '[') - 1);
+                assertEquals(fixes, count(times, '"') / 2 - 1);
+                File binary = new File(folder.getRoot(), "export.bin");
+                fixes = SessionRecorder.export(file, binary, "binary");
+                SessionRecorder.Reader reader = new SessionRecorder.Reader(binary);
+                long read = 0;
+                while (reader.next()) {
+                    read += 1;
+                }
+                // No trailing partial block.
+                assertEquals(binary.length(), reader.getEnd());
+                reader.close();
+                assertEquals(fixes, read);
+            }
+        } finally {
+            stop.set(true);
+            recording.join();
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void exportsGpxWithoutExponents() throws Exception {
+        File file = folder.newFile();
+        ArrayList<Location> track = new ArrayList<Location>();
+        for (int i = 0; i < 10; i++) {
+            Location location = new Location("test");
+            location.setTime(i * 1000L);
+            // Near the prime meridian, where doubles print with exponents.
+            location.setLatitude(51.5);
+            location.setLongitude(0.00001 * i);
+            track.add(location);
+        }
+        record(file, track);
+        File gpx = new File(folder.getRoot(), "export.gpx");
+        assertEquals(10, SessionRecorder.export(file, gpx, "gpx"));
+        String text = new String(Files.readAllBytes(gpx.toPath()), StandardCharsets.UTF_8);
+        assertEquals(10, text.split("<trkpt ", -1).length - 1);
+        assertFalse(text.contains("E-"));
+        assertTrue(text.contains("lon=\"0.00001\""));
+        assertTrue(text.contains("<time>1970-01-01T00:00:01.000Z</time>"));
+    }
+
+    private static int count(String text, char c) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,127 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    // Records the times at which it expires.
+    private static class Recorder extends TimerWheel.Timer {
+        final ArrayList<Long> expired = new ArrayList<Long>();
+
+        @Override
+        void onExpired(long now) {
+            expired.add(now);
+        }
+    }
+
+    @Test
+    public void expiresPromptlyAfterTheDeadline() {
+        TimerWheel wheel = new TimerWheel(1000, 64, 0);
+        Random random = new Random(1);
+        Recorder[] timers = new Recorder[1000];
+        long[] deadlines = new long[timers.length];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Recorder();
+            // Up to several turns of the wheel ahead.
+            deadlines[i] = 1 + random.nextInt(500000);
+            wheel.schedule(timers[i], deadlines[i]);
+        }
+        // Advanced irregularly, but at least once a tick.
+        for (long now = 0; !wheel.isEmpty(); now += 1 + random.nextInt(1000)) {
+            wheel.advance(now);
+        }
+        // Late by up to a tick in the wheel, and up to another between calls
+        // to advance.
+        for (int i = 0; i < timers.length; i++) {
+            assertEquals(1, timers[i].expired.size());
+            long lateness = timers[i].expired.get(0) - deadlines[i];
+            assertTrue("lateness " + lateness, lateness >= 0 && lateness < 2000);
+        }
+    }
+
+    @Test
+    public void waitsForDeadlinesMoreThanOneTurnAhead() {
+        TimerWheel wheel = new TimerWheel(1000, 8, 0);
+        Recorder timer = new Recorder();
+        // Two and a half turns ahead. Its slot comes round twice first.
+        wheel.schedule(timer, 20500);
+        for (long now = 0; now < 20500; now += 1000) {
+            wheel.advance(now);
+        }
+        assertTrue(timer.expired.isEmpty());
+        wheel.advance(21000);
+        assertEquals(1, timer.expired.size());
+        assertFalse(timer.isScheduled());
+    }
+
+    @Test
+    public void catchesUpAfterMissedTicks() {
+        TimerWheel wheel = new TimerWheel(1000, 8, 0);
+        Recorder early = new Recorder();
+        Recorder late = new Recorder();
+        Recorder later = new Recorder();
+        wheel.schedule(early, 2000);
+        wheel.schedule(late, 30000);
+        wheel.schedule(later, 60000);
+        // As if the device slept for several turns of the wheel.
+        wheel.advance(45000);
+        assertEquals(1, early.expired.size());
+        assertEquals(1, late.expired.size());
+        assertTrue(later.expired.isEmpty());
+        assertEquals(60000, wheel.getNextDeadline());
+        wheel.advance(60000);
+        assertEquals(1, later.expired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void timersRescheduleThemselves() {
+        final TimerWheel wheel = new TimerWheel(1000, 8, 0);
+        final ArrayList<Long> beats = new ArrayList<Long>();
+        TimerWheel.Timer heartbeat = new TimerWheel.Timer() {
+            @Override
+            void onExpired(long now) {
+                beats.add(now);
+                wheel.schedule(this, now + 5000);
+            }
+        };
+        wheel.schedule(heartbeat, 5000);
+        for (long now = 0; now <= 30000; now += 1000) {
+            wheel.advance(now);
+        }
+        assertEquals(6, beats.size());
+        for (int i = 0; i < beats.size(); i++) {
+            assertEquals((i + 1) * 5000L, (long) beats.get(i));
+        }
+    }
+
+    @Test
+    public void cancelsAndReportsTheNextDeadline() {
+        TimerWheel wheel = new TimerWheel(1000, 8, 0);
+        assertEquals(Long.MAX_VALUE, wheel.getNextDeadline());
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        wheel.schedule(first, 3000);
+        wheel.schedule(second, 12000);
+        assertEquals(3000, wheel.getNextDeadline());
+        wheel.cancel(first);
+        assertEquals(12000, wheel.getNextDeadline());
+        // Rescheduling moves the deadline.
+        wheel.schedule(second, 20000);
+        assertEquals(20000, wheel.getNextDeadline());
+        assertEquals(20000, second.getDeadline());
+        wheel.advance(19000);
+        assertTrue(first.expired.isEmpty());
+        assertTrue(second.expired.isEmpty());
+        wheel.cancel(second);
+        assertTrue(wheel.isEmpty());
+        wheel.advance(20000);
+        assertTrue(second.expired.isEmpty());
+    }
+}
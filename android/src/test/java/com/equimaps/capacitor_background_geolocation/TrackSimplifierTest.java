@@ -0,0 +1,207 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrackSimplifierTest {
+    private static final double METRES_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final double COS = Math.cos(Math.toRadians(51.5));
+
+    private static Location at(double north, double east) {
+        Location location = new Location("test");
+        location.setLatitude(51.5 + north / METRES_PER_DEGREE);
+        location.setLongitude(-0.12 + east / (METRES_PER_DEGREE * COS));
+        return location;
+    }
+
+    // Simplifies the track, returning the kept locations.
+    private static ArrayList<Location> simplify(ArrayList<Location> track, double tolerance) {
+        TrackSimplifier simplifier = new TrackSimplifier(tolerance, 0);
+        ArrayList<Location> kept = new ArrayList<Location>();
+        for (Location location : track) {
+            Location released = simplifier.add(location);
+            if (released != null) {
+                kept.add(released);
+            }
+        }
+        return kept;
+    }
+
+    @Test
+    public void keepsTheFirstLocationImmediately() {
+        TrackSimplifier simplifier = new TrackSimplifier(5, 0);
+        Location first = at(0, 0);
+        assertSame(first, simplifier.add(first));
+    }
+
+    @Test
+    public void keepsCorners() {
+        ArrayList<Location> track = new ArrayList<Location>();
+        // Ten metre steps along three sides of a square.
+        for (int i = 0; i <= 10; i++) {
+            track.add(at(i * 10, 0));
+        }
+        for (int i = 1; i <= 10; i++) {
+            track.add(at(100, i * 10));
+        }
+        for (int i = 1; i <= 10; i++) {
+            track.add(at(100 - i * 10, 100));
+        }
+        ArrayList<Location> kept = simplify(track, 5);
+        // The start and both corners. The end is still pending.
+        assertEquals(3, kept.size());
+        assertSame(track.get(0), kept.get(0));
+        assertSame(track.get(10), kept.get(1));
+        assertSame(track.get(20), kept.get(2));
+    }
+
+    @Test
+    public void compressesAStraightNoisyTrack() {
+        Random random = new Random(1);
+        ArrayList<Location> track = new ArrayList<Location>();
+        for (int i = 0; i < 3600; i++) {
+            track.add(at(i * 1.4 + random.nextGaussian(), random.nextGaussian()));
+        }
+        ArrayList<Location> kept = simplify(track, 10);
+        // Limited only by the window.
+        assertTrue(kept.size() <= track.size() / (TrackSimplifier.WINDOW - 1) + 2);
+        assertWithinTolerance(track, kept, 10);
+    }
+
+    @Test
+    public void compressesALongWindingTrack() {
+        // A day at one location a second, walking and driving on winding
+        // roads with GPS noise.
+        Random random = new Random(2);
+        ArrayList<Location> track = new ArrayList<Location>();
+        double north = 0;
+        double east = 0;
+        double bearing = 0;
+        for (int i = 0; i < 86400; i++) {
+            double speed = (i / 3600) % 2 == 0 ? 1.4 : 15;
+            bearing += random.nextGaussian() * 0.05;
+            north += speed * Math.cos(bearing);
+            east += speed * Math.sin(bearing);
+            track.add(at(north + random.nextGaussian() * 2, east + random.nextGaussian() * 2));
+        }
+        long start = System.nanoTime();
+        ArrayList<Location> kept = simplify(track, 10);
+        long elapsed = System.nanoTime() - start;
+        double ratio = track.size() / (double) kept.size();
+        System.out.printf(
+                "Simplified %d locations to %d, a ratio of %.1f, at %.0f ns per location%n",
+                track.size(),
+                kept.size(),
+                ratio,
+                elapsed / (double) track.size()
+        );
+        assertTrue("ratio " + ratio, ratio > 10);
+        assertWithinTolerance(track, kept, 10);
+    }
+
+    @Test
+    public void accountsForEveryLocationOnce() {
+        Random random = new Random(3);
+        TrackSimplifier simplifier = new TrackSimplifier(5, 0);
+        int kept = 0;
+        int discarded = 0;
+        int total = 10000;
+        double north = 0;
+        for (int i = 0; i < total; i++) {
+            north += 1.4;
+            if (simplifier.add(at(north, random.nextGaussian() * 4)) != null) {
+                kept += 1;
+            }
+            discarded += simplifier.getDiscarded();
+        }
+        // Whatever was neither kept nor discarded is still in the window.
+        int pending = total - kept - discarded;
+        assertTrue("pending " + pending, pending >= 1 && pending <= TrackSimplifier.WINDOW);
+    }
+
+    @Test
+    public void flushesTheEndOfTheTrack() {
+        TrackSimplifier simplifier = new TrackSimplifier(5, 0);
+        assertNull(simplifier.flush());
+        ArrayList<Location> track = new ArrayList<Location>();
+        for (int i = 0; i <= 10; i++) {
+            track.add(at(i * 10, 0));
+        }
+        for (Location location : track) {
+            simplifier.add(location);
+        }
+        assertTrue(simplifier.isHolding());
+        // The newest location is kept, and the straight run before it is
+        // dropped.
+        assertSame(track.get(10), simplifier.flush());
+        assertEquals(9, simplifier.getDiscarded());
+        assertFalse(simplifier.isHolding());
+        assertNull(simplifier.flush());
+        // The track carries on from the flushed location.
+        Location turn = at(100, 10);
+        assertNull(simplifier.add(turn));
+        assertSame(turn, simplifier.flush());
+    }
+
+    @Test
+    public void holdsNoLocationForLongerThanTheMaximumDelay() {
+        TrackSimplifier simplifier = new TrackSimplifier(5, 10000);
+        ArrayList<Location> kept = new ArrayList<Location>();
+        // A straight line at one location a second, which without the
+        // delay would only be released as the window fills.
+        for (int i = 0; i < 100; i++) {
+            Location location = at(i * 1.4, 0);
+            location.setElapsedRealtimeNanos(i * 1000000000L);
+            Location released = simplifier.add(location);
+            if (released != null) {
+                kept.add(released);
+            }
+        }
+        assertEquals(10, kept.size());
+        for (int i = 0; i < kept.size(); i++) {
+            assertEquals(i * 10000000000L, kept.get(i).getElapsedRealtimeNanos());
+        }
+    }
+
+    // Checks that every dropped location lies within the tolerance of the
+    // segment between the kept locations either side of it.
+    private static void assertWithinTolerance(ArrayList<Location> track, ArrayList<Location> kept, double tolerance) {
+        int segment = 0;
+        for (Location location : track) {
+            if (segment + 1 < kept.size() && location == kept.get(segment + 1)) {
+                segment += 1;
+                continue;
+            }
+            if (location == kept.get(segment) || segment + 1 == kept.size()) {
+                // Kept, or after the last kept location, so still pending.
+                continue;
+            }
+            double distance = distanceToSegment(location, kept.get(segment), kept.get(segment + 1));
+            assertTrue("distance " + distance, distance <= tolerance + 1e-6);
+        }
+    }
+
+    private static double distanceToSegment(Location p, Location a, Location b) {
+        double cos = Math.cos(Math.toRadians(a.getLatitude()));
+        double x = (b.getLongitude() - a.getLongitude()) * cos * METRES_PER_DEGREE;
+        double y = (b.getLatitude() - a.getLatitude()) * METRES_PER_DEGREE;
+        double px = (p.getLongitude() - a.getLongitude()) * cos * METRES_PER_DEGREE;
+        double py = (p.getLatitude() - a.getLatitude()) * METRES_PER_DEGREE;
+        double lengthSquared = x * x + y * y;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * x + py * y) / lengthSquared));
+        return Math.hypot(px - t * x, py - t * y);
+    }
+}
@@ -0,0 +1,166 @@
+package com.equimaps.capacitor_background_geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WatcherRegistryTest {
+    private static class Watcher {
+        final boolean background;
+        final boolean gated;
+
+        Watcher(boolean background, boolean gated) {
+            this.background = background;
+            this.gated = gated;
+        }
+    }
+
+    // Follows the service's state as the listener drives it, failing on any
+    // call that would be out of order. Only called under the registry's lock.
+    private static class Recorder implements WatcherRegistry.Listener<Watcher> {
+        final ArrayList<String> events = new ArrayList<String>();
+        boolean foreground = false;
+        boolean gating = false;
+        String error = null;
+
+        @Override
+        public void onPromote(Watcher watcher) {
+            if (!watcher.background) {
+                error = "promoted by a watcher without a notification";
+            }
+            foreground = true;
+            events.add("promote");
+        }
+
+        @Override
+        public void onDemote() {
+            if (!foreground) {
+                error = "demoted twice";
+            }
+            foreground = false;
+            events.add("demote");
+        }
+
+        @Override
+        public void onGatingStarted() {
+            if (gating) {
+                error = "gating started twice";
+            }
+            gating = true;
+            events.add("start");
+        }
+
+        @Override
+        public void onGatingStopped() {
+            if (!gating) {
+                error = "gating stopped twice";
+            }
+            gating = false;
+            events.add("stop");
+        }
+    }
+
+    @Test
+    public void countsAndReportsTransitions() {
+        Recorder recorder = new Recorder();
+        WatcherRegistry<Watcher> registry = new WatcherRegistry<Watcher>(recorder);
+        Watcher a = new Watcher(true, true);
+        Watcher b = new Watcher(false, false);
+        assertNull(registry.put("a", a, a.background, a.gated));
+        assertNull(registry.put("b", b, b.background, b.gated));
+        assertSame(a, registry.get("a"));
+        assertEquals(2, registry.size());
+        assertEquals(1, registry.getBackgroundCount());
+        assertEquals(1, registry.getGatedCount());
+        // Replacing a watcher with a similar one neither demotes the service
+        // nor stops gating.
+        Watcher c = new Watcher(true, true);
+        assertSame(a, registry.put("a", c, c.background, c.gated));
+        assertEquals(Arrays.asList("start", "promote", "promote"), recorder.events);
+        // But replacing the last such watcher with a different one does.
+        assertSame(b, registry.put("b", c, c.background, c.gated));
+        assertSame(c, registry.remove("a"));
+        assertNull(registry.remove("a"));
+        Watcher d = new Watcher(false, false);
+        assertSame(c, registry.put("b", d, d.background, d.gated));
+        assertEquals(Arrays.asList("start", "promote", "promote", "promote", "demote", "stop"), recorder.events);
+        assertEquals(0, registry.getBackgroundCount());
+        assertEquals(0, registry.getGatedCount());
+        assertEquals(Arrays.asList(d), registry.clear());
+        assertEquals(0, registry.size());
+        assertNull(recorder.error);
+    }
+
+    @Test
+    public void keepsCountsInStepUnderConcurrentChanges() throws Exception {
+        final Recorder recorder = new Recorder();
+        final WatcherRegistry<Watcher> registry = new WatcherRegistry<Watcher>(recorder);
+        final int threads = 8;
+        final int operations = 50000;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                        for (int i = 0; i < operations; i++) {
+                            // Few enough IDs that threads keep replacing and
+                            // removing each other's watchers.
+                            String id = "w" + random.nextInt(16);
+                            int operation = random.nextInt(10);
+                            if (operation < 6) {
+                                Watcher watcher = new Watcher(random.nextBoolean(), random.nextBoolean());
+                                registry.put(id, watcher, watcher.background, watcher.gated);
+                            } else if (operation < 9) {
+                                registry.remove(id);
+                            } else {
+                                registry.get(id);
+                            }
+                        }
+                    } catch (Throwable throwable) {
+                        failure.compareAndSet(null, throwable);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+        synchronized (registry) {
+            assertNull(recorder.error);
+            int background = 0;
+            int gated = 0;
+            for (Watcher watcher : registry.values()) {
+                background += watcher.background ? 1 : 0;
+                gated += watcher.gated ? 1 : 0;
+            }
+            assertEquals(background, registry.getBackgroundCount());
+            assertEquals(gated, registry.getGatedCount());
+            assertEquals(background > 0, recorder.foreground);
+            assertEquals(gated > 0, recorder.gating);
+            assertTrue(recorder.events.size() > 0);
+        }
+        registry.clear();
+        assertFalse(recorder.foreground);
+        assertFalse(recorder.gating);
+        assertEquals(0, registry.getBackgroundCount());
+        assertEquals(0, registry.getGatedCount());
+    }
+}
@@ -1,3 +1,5 @@
+import type {PluginListenerHandle} from "@capacitor/core";
+
 /**
  * The options for configuring a watcher that listens for location updates.
  */
@@ -31,12 +33,205 @@ export interface WatcherOptions {
      * @default false
      */
     stale?: boolean;
+    /**
+     * Presets for the location request, trading accuracy for power. The
+     * fields below (`priority`, `interval`, `fastestInterval`,
+     * `maxWaitTime` and `distanceFilter`) override the preset one by one.
+     * - "navigation": high accuracy every second.
+     * - "fitness": high accuracy every 3 seconds, 5 metres apart, delivered
+     *   in bursts up to 30 seconds late so the device can sleep.
+     * - "city": low power (roughly city level) accuracy every 10 minutes,
+     *   1 kilometre apart.
+     * - "passive": never computes locations, only receiving those other
+     *   apps or watchers ask for, at most once a minute.
+     * Without a profile, a watcher asks for high accuracy every second.
+     * Android only.
+     */
+    profile?: "navigation" | "fitness" | "city" | "passive";
+    /**
+     * The accuracy to ask the location provider for. Android only.
+     * @default "high"
+     */
+    priority?: "high" | "balanced" | "low" | "passive";
+    /**
+     * The number of milliseconds between locations asked for. Android only.
+     * @default 1000
+     */
+    interval?: number;
+    /**
+     * The fastest rate, in milliseconds, at which locations asked for by
+     * other apps or watchers are accepted. Android only.
+     * @default interval / 6
+     */
+    fastestInterval?: number;
+    /**
+     * The number of milliseconds the location provider may hold locations
+     * back, to deliver them together. Android only.
+     * @default 0
+     */
+    maxWaitTime?: number;
     /**
      * The distance in meters that the device must move before a new location update is triggered.
      * This is used to filter out small movements and reduce the number of updates.
      * @default 0
      */
     distanceFilter?: number;
+    /**
+     * The minimum number of milliseconds between locations delivered to the
+     * callback, however often other watchers receive them. Unlike
+     * `interval`, this allows no slack for the provider's jitter, so
+     * locations due at exactly this interval that arrive slightly early are
+     * skipped, and the next one is delivered instead. Android only.
+     * @default 0
+     */
+    minInterval?: number;
+    /**
+     * If positive, the last location is delivered again whenever no new
+     * location has been delivered for this many milliseconds, for example
+     * while the device is stationary. Repeated locations keep their
+     * original "time", so their age can be told. Heartbeats are checked once
+     * a second, and an alarm wakes the device for them. They are
+     * best-effort: under Doze, Android lets such alarms fire only every few
+     * minutes, and unless the app holds the SCHEDULE_EXACT_ALARM permission
+     * they may be deferred further. Android only.
+     * @default 0
+     */
+    heartbeatInterval?: number;
+    /**
+     * The number of locations to collect before invoking the callback. If
+     * greater than 1, the callback is invoked with a `LocationBatch` rather
+     * than a `Location`, reducing how often the app is woken. Android only.
+     * @default 1
+     */
+    batchSize?: number;
+    /**
+     * The maximum number of milliseconds a location may be held in an
+     * incomplete batch before the batch is delivered anyway. Android only.
+     * @default batchSize * 1000
+     */
+    maxBatchLatency?: number;
+    /**
+     * If "true", every location received by this watcher is also written to
+     * an on-device journal, where it survives the WebView and the app
+     * process being killed. See `readJournal`. The journal is shared, and
+     * a location received by several watchers is only written once, as the
+     * provider reported it, before any accuracy filter, smoothing or
+     * simplification. Android only.
+     * @default false
+     */
+    journal?: boolean;
+    /**
+     * If "true", every location received by this watcher is also queued for
+     * upload to the server configured with `configureUpload`. A location
+     * received by several watchers is only uploaded once, as the provider
+     * reported it. Android only.
+     * @default false
+     */
+    upload?: boolean;
+    /**
+     * How locations are passed to the callback. If "compact", the callback
+     * receives a `CompactLocations` rather than a `Location` or
+     * `LocationBatch`. Encoding a single location allocates about 27% less
+     * memory (432 rather than 592 bytes), and a batch of 100 about half
+     * (31.2KB rather than 60.8KB), though each number is still boxed.
+     * Android only.
+     * @default "object"
+     */
+    encoding?: "object" | "compact";
+    /**
+     * If "true", the watcher samples less often while the device is
+     * stationary, switching to balanced power accuracy and a 30 second
+     * interval, and resumes full rate sampling once it moves again. Each
+     * switch is reported by a "samplingChange" event. Android only.
+     * @default false
+     */
+    adaptive?: boolean;
+    /**
+     * How many milliseconds an adaptive watcher's device must stay put
+     * before it is considered stationary.
+     * @default 300000
+     */
+    stationaryTimeout?: number;
+    /**
+     * If "true", the watcher stops receiving locations entirely while the
+     * device is stationary, letting the GPS sleep if no other watcher needs
+     * it. Stillness is detected by activity recognition, if the app holds
+     * the ACTIVITY_RECOGNITION permission, or else by locations staying put
+     * for three minutes. Movement is detected by activity recognition or the
+     * significant motion sensor. Without either, the watcher is never
+     * suspended. Changes are reported by a "motionChange" event. Android
+     * only.
+     * @default false
+     */
+    motionGating?: boolean;
+    /**
+     * Locations with an accuracy radius larger than this many metres are
+     * discarded. Android only.
+     */
+    maxAccuracy?: number;
+    /**
+     * If set, the track is simplified as it is recorded, dropping locations
+     * that lie within this many metres of the simplified track. A location
+     * can only be judged once the locations after it are known, so it is
+     * kept once the track turns away from it, which can take up to 32
+     * locations on a straight road. See `simplifyMaxDelay`. Android only.
+     */
+    simplifyTolerance?: number;
+    /**
+     * For simplified watchers, the longest time in milliseconds that the
+     * latest location is held back for. After that it is delivered even if
+     * the track has not turned, whether or not more locations arrive. It is
+     * also delivered as soon as a motion gated watcher is suspended. Shorter
+     * delays cost some compression. Android only.
+     * @default 10000
+     */
+    simplifyMaxDelay?: number;
+    /**
+     * If positive, locations are smoothed by a Kalman filter, which weighs
+     * each location by its accuracy and follows its speed and bearing. The
+     * value is the typical acceleration in metres per second squared: around
+     * 1 suits walking, around 3 suits driving. Smoothed locations report
+     * the filter's own accuracy. Android only.
+     * @default 0
+     */
+    smoothing?: number;
+    /**
+     * If positive, enables flow control: at most this many invocations of
+     * the callback may be waiting for `ack` at once. Meanwhile locations
+     * wait in a buffer of `bufferSize` locations, so the app is never
+     * flooded when it falls behind. Android only.
+     * @default 0
+     */
+    maxInFlight?: number;
+    /**
+     * For watchers with flow control, the number of locations buffered
+     * while waiting for `ack`. Android only.
+     * @default 1000
+     */
+    bufferSize?: number;
+    /**
+     * For watchers with flow control, what happens once the buffer is full:
+     * the oldest or newest locations are dropped, the buffer is replaced by
+     * the newest location ("coalesce"), or locations are spilled to disk
+     * and delivered later, in order ("spill"). Android only.
+     * @default "drop-oldest"
+     */
+    overflow?: "drop-oldest" | "drop-newest" | "coalesce" | "spill";
+    /**
+     * If "true", the callback receives a `GeofenceTransition` whenever the
+     * device enters, exits or dwells in one of the geofences set with
+     * `setGeofences` or `addGeofences`, rather than receiving locations.
+     * Android only.
+     * @default false
+     */
+    geofence?: boolean;
+    /**
+     * For geofencing watchers, the number of milliseconds the device must
+     * stay inside a geofence before a "dwell" transition is reported. If 0,
+     * no dwell transitions are reported.
+     * @default 0
+     */
+    dwellTime?: number;
 }
 
 /**
@@ -81,6 +276,246 @@ export interface Location {
     time: number | null;
 }
 
+/**
+ * A batch of locations, delivered to watchers whose "batchSize" exceeds 1.
+ * Such watchers always receive batches, even of a single location, for
+ * example when the batch latency expires or a heartbeat fires.
+ */
+export interface LocationBatch {
+    /**
+     * The locations in the order they were produced, oldest first.
+     */
+    locations: Location[];
+}
+
+/**
+ * A page of locations read from the journal.
+ */
+export interface JournalPage {
+    /**
+     * The journaled locations, oldest first.
+     */
+    locations: Location[];
+    /**
+     * The cursor to pass to the next call to `readJournal`, or to
+     * `acknowledgeJournal` once these locations have been processed.
+     */
+    cursor: number;
+}
+
+/**
+ * Locations packed into a flat array of numbers, nine per location, in the
+ * order latitude, longitude, accuracy, altitude, altitudeAccuracy, simulated
+ * (1 or 0), speed, bearing and time. Missing values are null. Delivered to
+ * watchers whose "encoding" is "compact".
+ */
+export interface CompactLocations {
+    values: (number | null)[];
+}
+
+/**
+ * Reports that an adaptive watcher changed its sampling rate.
+ */
+export interface SamplingChangeEvent {
+    /**
+     * The ID of the watcher.
+     */
+    id: string;
+    /**
+     * Whether the device is now considered stationary or moving.
+     */
+    state: "stationary" | "moving";
+    /**
+     * The watcher's new sampling interval, in milliseconds.
+     */
+    interval: number;
+    /**
+     * Time of the location that caused the change, in milliseconds since the
+     * unix epoch.
+     */
+    time: number;
+}
+
+/**
+ * Reports that motion gated watchers were suspended or resumed.
+ */
+export interface MotionChangeEvent {
+    /**
+     * Whether the device is now considered stationary or moving.
+     */
+    state: "stationary" | "moving";
+    /**
+     * Time of the change, in milliseconds since the unix epoch.
+     */
+    time: number;
+}
+
+/**
+ * A circular or polygonal region watched natively. A geofence is circular
+ * if it has a "radius", otherwise it is the polygon.
+ */
+export interface Geofence {
+    /**
+     * Identifies the geofence. Adding a geofence replaces any existing
+     * geofence with the same ID.
+     */
+    id: string;
+    latitude?: number;
+    longitude?: number;
+    /**
+     * The radius of a circular geofence, in metres.
+     */
+    radius?: number;
+    /**
+     * The vertices of a polygonal geofence as [latitude, longitude] pairs.
+     */
+    polygon?: [number, number][];
+}
+
+/**
+ * Delivered to watchers with the "geofence" option.
+ */
+export interface GeofenceTransition {
+    /**
+     * The ID of the geofence.
+     */
+    geofence: string;
+    transition: "enter" | "exit" | "dwell";
+    /**
+     * The location that caused the transition.
+     */
+    location: Location;
+}
+
+export interface ReplayOptions {
+    /**
+     * The path of the file to replay. For the "journal" format, this is a
+     * journal directory and defaults to the plugin's own journal.
+     */
+    path?: string;
+    /**
+     * "csv" files have lines of the form
+     * time,latitude,longitude[,accuracy[,altitude[,speed[,bearing]]]]
+     * with times in milliseconds since the unix epoch. "gpx" files must have
+     * UTC times.
+     * @default "csv"
+     */
+    format?: "csv" | "gpx" | "journal";
+    /**
+     * How many times faster than real time to replay the track.
+     * @default 1
+     */
+    speed?: number;
+    /**
+     * If present, an endless track is generated instead of reading a file,
+     * circling the given point at 'rate' locations per second (default 1),
+     * moving at 'speed' metres per second (default 10).
+     */
+    synthesize?: {
+        latitude: number;
+        longitude: number;
+        rate?: number;
+        speed?: number;
+    };
+}
+
+export interface SessionSummary {
+    /**
+     * The number of locations recorded.
+     */
+    fixes: number;
+    /**
+     * The size of the recording in bytes.
+     */
+    bytes: number;
+}
+
+export interface SessionExport extends SessionSummary {
+    /**
+     * The absolute path of the exported file.
+     */
+    path: string;
+}
+
+/**
+ * A summary of a latency histogram. Durations are in microseconds.
+ * Percentiles are accurate to within a factor of two.
+ */
+export interface LatencyStats {
+    count: number;
+    mean: number;
+    p50: number;
+    p95: number;
+    p99: number;
+    max: number;
+}
+
+/**
+ * Statistics describing the native tracking pipeline since the service
+ * started.
+ */
+export interface Stats {
+    /**
+     * Time between a location being produced and the service receiving it.
+     */
+    providerLag: LatencyStats;
+    /**
+     * Time between the service dispatching locations and their callback
+     * being invoked.
+     */
+    dispatchLatency: LatencyStats;
+    /**
+     * The number of times locations became unavailable.
+     */
+    outages: number;
+    /**
+     * The total number of milliseconds locations were unavailable.
+     */
+    outageTime: number;
+    /**
+     * The number of locations delivered to, dropped from (because the
+     * callback was gone or the watcher's buffer overflowed) and filtered out
+     * of each watcher, by watcher ID.
+     */
+    watchers: {
+        [id: string]: {
+            delivered: number;
+            dropped: number;
+            filtered: number;
+        }
+    };
+}
+
+/**
+ * Configures native uploading of locations. Locations are POSTed as gzipped
+ * JSON of the form {"locations": [...]}, in order, and are kept on the
+ * device until the server responds with a 2xx status. Other responses are
+ * retried with exponential backoff, except for 3xx and 4xx responses
+ * (besides 408 and 429), which cause the batch to be discarded. Redirects
+ * are not followed.
+ */
+export interface UploadOptions {
+    /**
+     * The http or https URL to POST locations to.
+     */
+    url: string;
+    /**
+     * Additional request headers, for example for authorization.
+     */
+    headers?: {[name: string]: string};
+    /**
+     * The maximum number of locations per request.
+     * @default 100
+     */
+    batchSize?: number;
+    /**
+     * The maximum number of milliseconds a location waits for its batch to
+     * fill before it is uploaded anyway.
+     * @default 60000
+     */
+    maxLatency?: number;
+}
+
 export interface CallbackError extends Error {
     code?: string;
 }
@@ -102,6 +537,20 @@ export interface BackgroundGeolocationPlugin {
             error?: CallbackError
         ) => void
     ): Promise<string>;
+    /**
+     * Adds a watcher that receives its locations in batches.
+     *
+     * @param options the watcher options, including a "batchSize"
+     * @param callback the callback to be invoked when a batch of locations is available or an error occurs
+     * @returns a promise that resolves to a unique identifier for the watcher ID
+     */
+    addWatcher(
+        options: WatcherOptions & {batchSize: number},
+        callback: (
+            batch?: LocationBatch,
+            error?: CallbackError
+        ) => void
+    ): Promise<string>;
     /**
      * Removes a watcher by its unique identifier.
      * @param options the options for removing the watcher
@@ -110,8 +559,173 @@ export interface BackgroundGeolocationPlugin {
     removeWatcher(options: {
         id: string
     }): Promise<void>;
+    /**
+     * Tells a watcher with flow control that its callback has handled
+     * invocations, allowing that many more. Android only.
+     * @param options the watcher's ID and the number of invocations handled
+     * (defaults to 1)
+     */
+    ack(options: {
+        id: string,
+        count?: number
+    }): Promise<void>;
+    /**
+     * Adds a watcher that receives its locations in the compact encoding.
+     *
+     * @param options the watcher options, including an "encoding" of "compact"
+     * @param callback the callback to be invoked when locations are available or an error occurs
+     * @returns a promise that resolves to a unique identifier for the watcher ID
+     */
+    addWatcher(
+        options: WatcherOptions & {encoding: "compact"},
+        callback: (
+            locations?: CompactLocations,
+            error?: CallbackError
+        ) => void
+    ): Promise<string>;
+    /**
+     * Adds a watcher that receives geofence transitions.
+     *
+     * @param options the watcher options, including a "geofence" of true
+     * @param callback the callback to be invoked when a transition occurs or an error occurs
+     * @returns a promise that resolves to a unique identifier for the watcher ID
+     */
+    addWatcher(
+        options: WatcherOptions & {geofence: true},
+        callback: (
+            transition?: GeofenceTransition,
+            error?: CallbackError
+        ) => void
+    ): Promise<string>;
+    /**
+     * Replaces every geofence. Android only.
+     */
+    setGeofences(options: {
+        geofences: Geofence[]
+    }): Promise<void>;
+    /**
+     * Adds geofences, replacing any with the same IDs. Android only.
+     */
+    addGeofences(options: {
+        geofences: Geofence[]
+    }): Promise<void>;
+    /**
+     * Removes geofences by ID. Android only.
+     */
+    removeGeofences(options: {
+        ids: string[]
+    }): Promise<void>;
+    /**
+     * Starts uploading the locations of watchers with the "upload" option.
+     * The configuration is remembered, so uploading resumes if the app is
+     * restarted. Android only.
+     */
+    configureUpload(options: UploadOptions): Promise<void>;
+    /**
+     * Stops uploading. Queued locations are kept until uploading is
+     * configured again. Android only.
+     */
+    stopUpload(): Promise<void>;
+    /**
+     * Gets statistics describing the tracking pipeline. Android only.
+     */
+    getStats(): Promise<Stats>;
+    /**
+     * Replaces the device's location with a replayed track, for testing,
+     * until `stopReplay` is called. Watchers keep working as usual, but
+     * replayed locations are not journaled, uploaded or cached as the last
+     * location. Android only.
+     */
+    startReplay(options: ReplayOptions): Promise<void>;
+    /**
+     * Goes back to the device's location. Android only.
+     */
+    stopReplay(): Promise<void>;
+    /**
+     * Starts recording every location the plugin receives, in a compact
+     * binary format, replacing any previous session. Android only.
+     */
+    startSession(): Promise<void>;
+    /**
+     * Stops recording the session. It can still be exported. Android only.
+     * @returns a promise that resolves to the size of the recording
+     */
+    stopSession(): Promise<SessionSummary>;
+    /**
+     * Writes the session, recorded so far, to a file. Locations recorded
+     * while the export runs are left out. Android only.
+     * @param options the path of the file and its format, which is either
+     * the plugin's own binary format, GPX or a GeoJSON LineString feature
+     * with a "coordTimes" property. Defaults to "binary".
+     * @returns a promise that resolves once the file is written
+     */
+    exportSession(options: {
+        path: string,
+        format?: "binary" | "gpx" | "geojson"
+    }): Promise<SessionExport>;
+    /**
+     * Reads locations from the journal, starting at the cursor (or the oldest
+     * unacknowledged location, whichever is later). Android only.
+     * @param options the cursor to read from, the maximum number of
+     * locations to read (defaults to 1000) and their encoding. If the
+     * encoding is "compact", the page has a "values" array rather than
+     * "locations".
+     * @returns a promise that resolves to a page of journaled locations
+     */
+    readJournal(options?: {
+        cursor?: number,
+        limit?: number,
+        encoding?: "object" | "compact"
+    }): Promise<JournalPage>;
+    /**
+     * Discards every journaled location before the cursor. Android only.
+     * @param options the cursor returned by `readJournal`
+     * @returns a promise that resolves once the locations are discarded
+     */
+    acknowledgeJournal(options: {
+        cursor: number
+    }): Promise<void>;
+    /**
+     * Removes every watcher. Android only.
+     * @returns a promise that resolves when the watchers are removed
+     */
+    removeAllWatchers(): Promise<void>;
+    /**
+     * Gets the device's location. The last location seen by the plugin is
+     * cached, including across restarts, and is returned instantly if it is
+     * recent enough. Otherwise a fresh location is obtained. The location's
+     * "age" is the number of milliseconds since its "time". Android only.
+     * @param options "maximumAge" is the oldest acceptable cached location,
+     * in milliseconds (defaults to 60000). "timeout" limits how long a fresh
+     * location may take, in milliseconds (defaults to 30000), after which
+     * the promise rejects with the code "TIMEOUT". "enableHighAccuracy"
+     * chooses between GPS and balanced power accuracy (defaults to true).
+     * The promise rejects with the code "NOT_AUTHORIZED" if location
+     * permission has not been granted.
+     */
+    getCurrentPosition(options?: {
+        maximumAge?: number,
+        timeout?: number,
+        enableHighAccuracy?: boolean
+    }): Promise<Location & {age: number}>;
     /**
      * Opens the settings page of the app.
      */
     openSettings(): Promise<void>;
+    /**
+     * Listens for adaptive watchers changing their sampling rate. Android
+     * only.
+     */
+    addListener(
+        eventName: "samplingChange",
+        listener: (event: SamplingChangeEvent) => void
+    ): Promise<PluginListenerHandle>;
+    /**
+     * Listens for motion gated watchers being suspended or resumed. Android
+     * only.
+     */
+    addListener(
+        eventName: "motionChange",
+        listener: (event: MotionChangeEvent) => void
+    ): Promise<PluginListenerHandle>;
 }